@@ -0,0 +1,55 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+/**
+ * Runs every test, exiting with status 1 if any failed.
+ */
+public class AllTests
+{
+    private static final Class[] TESTS = {
+        SpillingURLQueueTest.class,
+        CrawlJournalTest.class,
+        HTMLLinkTokenizerTest.class,
+        SpiderTest.class,
+        WarcStorageTest.class,
+    };
+
+    public static void main(String[] args)
+    {
+        int failures = 0;
+        for(int i = 0; i < TESTS.length; i++)
+        {
+            failures += SpiderTestCase.run(TESTS[i]);
+        }
+        if(failures > 0)
+        {
+            System.out.println(failures + " test(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All tests passed");
+    }
+}
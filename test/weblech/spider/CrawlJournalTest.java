@@ -0,0 +1,183 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Replaying the crawl journal, with and without a torn last record, and
+ * compacting it while records keep arriving.
+ */
+public class CrawlJournalTest extends SpiderTestCase
+{
+    /** Long enough that a thousand or two fill a journal past compaction size. */
+    private static final String PADDING = "/aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+
+    private static URLToDownload url(int n) throws Exception
+    {
+        return new URLToDownload(new CanonicalURL("http://example.com" + PADDING + "/page" + n + ".html"), n % 5);
+    }
+
+    private DownloadQueue queue() throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty("saveRootDirectory", getTempDirectory().getPath());
+        props.setProperty("startLocation", "http://example.com/");
+        return new DownloadQueue(new SpiderConfig(props));
+    }
+
+    /**
+     * Take everything from a queue, as a Set of URLs.
+     */
+    private static Set drain(DownloadQueue queue)
+    {
+        Set urls = new HashSet();
+        for(int tries = 0; queue.size() > 0 && tries < 100000; tries++)
+        {
+            URLToDownload u2d = queue.getNextInQueue();
+            if(u2d != null)
+            {
+                urls.add(u2d.getURL());
+                queue.downloadFinished(u2d);
+            }
+        }
+        return urls;
+    }
+
+    private File journal() throws Exception
+    {
+        return new File(getTempDirectory(), "spider.journal");
+    }
+
+    public void testReplayQueuesUncompletedURLs() throws Exception
+    {
+        CrawlJournal journal = new CrawlJournal(journal(), 60000, false);
+        for(int i = 0; i < 5; i++)
+        {
+            journal.enqueued(url(i));
+        }
+        journal.completed(url(1));
+        journal.completed(url(3));
+        journal.close();
+
+        DownloadQueue queue = queue();
+        FingerprintURLSet seen = new FingerprintURLSet();
+        assertEquals("queued", 3, CrawlJournal.replay(journal(), queue, seen));
+        assertEquals("seen", 5, seen.size());
+
+        Set expected = new HashSet();
+        expected.add(url(0).getURL());
+        expected.add(url(2).getURL());
+        expected.add(url(4).getURL());
+        assertEquals("queued URLs", expected, drain(queue));
+    }
+
+    public void testReplayDropsTornLastRecord() throws Exception
+    {
+        CrawlJournal journal = new CrawlJournal(journal(), 60000, false);
+        journal.enqueued(url(0));
+        journal.enqueued(url(1));
+        journal.completed(url(0));
+        journal.close();
+        long length = journal().length();
+
+        // An enqueue record cut off partway through its URL
+        FileOutputStream out = new FileOutputStream(journal(), true);
+        out.write(new byte[] { 1, 0, 60, 'h', 't', 't' });
+        out.close();
+
+        FingerprintURLSet seen = new FingerprintURLSet();
+        DownloadQueue queue = queue();
+        assertEquals("queued", 1, CrawlJournal.replay(journal(), queue, seen));
+        assertEquals("seen", 2, seen.size());
+        assertEquals("torn record cut off", length, journal().length());
+
+        // Records appended when resuming aren't lost behind the torn one
+        journal = new CrawlJournal(journal(), 60000, true);
+        journal.enqueued(url(2));
+        journal.close();
+        queue = queue();
+        assertEquals("queued after resuming", 2, CrawlJournal.replay(journal(), queue, new FingerprintURLSet()));
+        Set expected = new HashSet();
+        expected.add(url(1).getURL());
+        expected.add(url(2).getURL());
+        assertEquals("queued URLs", expected, drain(queue));
+    }
+
+    public void testCompactionKeepsStateAndCarriesOnAppending() throws Exception
+    {
+        File file = journal();
+        CrawlJournal journal = new CrawlJournal(file, 1, false);
+        Object before = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        int total = 8000;
+        int open = 100;
+        for(int i = 0; i < total; i++)
+        {
+            journal.enqueued(url(i));
+            if(i >= open)
+            {
+                journal.completed(url(i));
+            }
+        }
+
+        // Compaction renames a new file into place
+        long deadline = System.currentTimeMillis() + 10000;
+        while(before.equals(Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey()))
+        {
+            assertTrue("compacted within 10s", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        // Recorded after compaction, so must go to the new file
+        journal.enqueued(url(total));
+        journal.close();
+        assertTrue("no compaction file left", !new File(file.getPath() + ".compact").exists());
+        assertTrue("compacted, " + file.length() + " bytes", file.length() < 512 * 1024);
+
+        DownloadQueue queue = queue();
+        FingerprintURLSet seen = new FingerprintURLSet();
+        assertEquals("queued", open + 1, CrawlJournal.replay(file, queue, seen));
+        assertEquals("seen", total + 1, seen.size());
+        for(int i = 0; i < total + 1; i++)
+        {
+            assertTrue("seen " + i, seen.contains(url(i).getURL().getFingerprint()));
+        }
+
+        Set expected = new HashSet();
+        for(int i = 0; i < open; i++)
+        {
+            expected.add(url(i).getURL());
+        }
+        expected.add(url(total).getURL());
+        assertEquals("queued URLs", expected, drain(queue));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finding link attributes with the single-pass tokenizer, from text,
+ * bytes, buffers and pieces fed in as they arrive.
+ */
+public class HTMLLinkTokenizerTest extends SpiderTestCase
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    /** Collects links as "tag.attr=value". */
+    private static class Links implements HTMLLinkTokenizer.LinkHandler
+    {
+        final List found = new ArrayList();
+
+        public void link(String tag, String attr, String value)
+        {
+            found.add(tag + "." + attr + "=" + value);
+        }
+    }
+
+    private static HTMLLinkTokenizer tokenizer()
+    {
+        Map linkAttributes = new HashMap();
+        linkAttributes.put("a", Arrays.asList(new String[] { "href" }));
+        linkAttributes.put("img", Arrays.asList(new String[] { "src" }));
+        linkAttributes.put("frame", Arrays.asList(new String[] { "src", "longdesc" }));
+        return new HTMLLinkTokenizer(linkAttributes);
+    }
+
+    private static List links(String html)
+    {
+        Links links = new Links();
+        tokenizer().tokenize(html, links);
+        return links.found;
+    }
+
+    private static List list(String[] links)
+    {
+        return Arrays.asList(links);
+    }
+
+    public void testQuotingStyles()
+    {
+        assertEquals("links", list(new String[] { "a.href=double.html", "a.href=single.html", "a.href=bare.html" }),
+            links("<a href=\"double.html\">1</a> <a href='single.html'>2</a> <a href=bare.html>3</a>"));
+    }
+
+    public void testNamesMatchCaseInsensitively()
+    {
+        assertEquals("links", list(new String[] { "a.href=upper.html", "img.src=Mixed.PNG" }),
+            links("<A HREF=\"upper.html\"></A><Img SrC='Mixed.PNG'>"));
+    }
+
+    public void testOnlyConfiguredAttributesAreReported()
+    {
+        assertEquals("links", list(new String[] { "a.href=x.html", "frame.src=f.html", "frame.longdesc=d.html" }),
+            links("<a name=\"top\" href=\"x.html\" title=\"t\"><div href=\"no.html\"><img alt=\"no\">"
+                + "<frame src=f.html longdesc=d.html>"));
+    }
+
+    public void testAttributeSyntax()
+    {
+        assertEquals("links", list(new String[] { "a.href=after-bare.html", "a.href=spaced.html", "img.src=closed.png", "a.href=trimmed.html" }),
+            links("<a download href=\"after-bare.html\"><a href = \"spaced.html\"><img src=\"closed.png\"/>"
+                + "<a href=\"  trimmed.html \"><a href=\"\">"));
+    }
+
+    public void testQuotedValuesMayHoldMarkup()
+    {
+        assertEquals("links", list(new String[] { "a.href=q.html" }),
+            links("<a title=\"a > b <c>\" href=\"q.html\">"));
+    }
+
+    public void testCommentsAndDeclarationsAreSkipped()
+    {
+        assertEquals("links", list(new String[] { "a.href=after.html", "a.href=last.html" }),
+            links("<!DOCTYPE html><!-- <a href=\"hidden.html\"> -- still hidden --><a href=\"after.html\">"
+                + "<!--- <img src=\"gone.png\"> ---><a href=last.html>"));
+    }
+
+    public void testEndTagsAndStrayBracketsAreSkipped()
+    {
+        assertEquals("links", list(new String[] { "a.href=ok.html" }),
+            links("</a href=\"end.html\"> 1 < 2 <<a href=\"ok.html\"> <?php href=\"pi.html\" ?>"));
+    }
+
+    public void testBytesAreDecodedWithTheCharset() throws Exception
+    {
+        String html = "<a href=\"caf\u00e9.html\">caf\u00e9</a>";
+        Links utf8 = new Links();
+        tokenizer().tokenize(html.getBytes("UTF-8"), UTF8, utf8);
+        assertEquals("utf-8", list(new String[] { "a.href=caf\u00e9.html" }), utf8.found);
+
+        Links latin1 = new Links();
+        tokenizer().tokenize(html.getBytes("ISO-8859-1"), LATIN1, latin1);
+        assertEquals("latin-1", list(new String[] { "a.href=caf\u00e9.html" }), latin1.found);
+    }
+
+    public void testByteOrderMarkIsSkipped() throws Exception
+    {
+        byte[] body = "<a href=\"b.html\">".getBytes("UTF-8");
+        byte[] withBom = new byte[body.length + 3];
+        withBom[0] = (byte) 0xef;
+        withBom[1] = (byte) 0xbb;
+        withBom[2] = (byte) 0xbf;
+        System.arraycopy(body, 0, withBom, 3, body.length);
+
+        Links links = new Links();
+        tokenizer().tokenize(withBom, UTF8, links);
+        assertEquals("links", list(new String[] { "a.href=b.html" }), links.found);
+
+        links = new Links();
+        ByteBuffer buffer = ByteBuffer.wrap(withBom);
+        tokenizer().tokenize(buffer, UTF8, links);
+        assertEquals("buffer links", list(new String[] { "a.href=b.html" }), links.found);
+        assertEquals("buffer position", 0, buffer.position());
+    }
+
+    public void testBufferIsReadFromItsPosition() throws Exception
+    {
+        byte[] bytes = "<a href=\"skipped.html\"><a href=\"read.html\">".getBytes("UTF-8");
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(bytes.length / 2 + 1);
+
+        Links links = new Links();
+        tokenizer().tokenize(buffer, UTF8, links);
+        assertEquals("links", list(new String[] { "a.href=read.html" }), links.found);
+        assertEquals("position unchanged", bytes.length / 2 + 1, buffer.position());
+    }
+
+    public void testFeedingInPiecesMatchesWholeDocument() throws Exception
+    {
+        String html = "<html><!-- <a href=\"c.html\"> --><A HREF='one.html'>x</A>"
+            + "<img alt=\"a>b\" src=two.png><frame longdesc=\"caf\u00e9.html\" src=\"three.html\"></html>";
+        byte[] bytes = html.getBytes("UTF-8");
+        Links whole = new Links();
+        tokenizer().tokenize(bytes, UTF8, whole);
+        assertEquals("whole", 4, whole.found.size());
+
+        HTMLLinkTokenizer t = tokenizer();
+        for(int split = 0; split <= bytes.length; split++)
+        {
+            Links pieces = new Links();
+            t.begin(UTF8);
+            t.feed(bytes, 0, split, pieces);
+            t.feed(bytes, split, bytes.length - split, pieces);
+            assertEquals("split at " + split, whole.found, pieces.found);
+        }
+    }
+
+    public void testStateIsResetBetweenDocuments()
+    {
+        HTMLLinkTokenizer t = tokenizer();
+        Links first = new Links();
+        t.tokenize("<a href=\"unterminated.html", first);
+        assertEquals("unterminated", 0, first.found.size());
+
+        Links second = new Links();
+        t.tokenize("<a href=\"next.html\">", second);
+        assertEquals("next document", list(new String[] { "a.href=next.html" }), second.found);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Whole crawls against a Fetcher that serves pages from memory.
+ */
+public class SpiderTest extends SpiderTestCase
+{
+    private static final String HOST = "http://example.com";
+    private static final int BOOMS = 30;
+    private static final int PAGES = 10;
+
+    /**
+     * Serves an index linking to pages that fetch fine and pages whose
+     * fetch throws a RuntimeException.
+     */
+    private static class PageFetcher implements Fetcher
+    {
+        final AtomicInteger fetches = new AtomicInteger();
+
+        public CompletableFuture fetch(URLToDownload url, Map requestHeaders)
+        {
+            fetches.incrementAndGet();
+            String path = url.getURL().toURL().getPath();
+            if(path.startsWith("/boom"))
+            {
+                throw new IllegalStateException("Fetch of " + path + " blew up");
+            }
+            StringBuffer html = new StringBuffer("<html>");
+            if(path.equals("/index.html"))
+            {
+                for(int i = 0; i < BOOMS; i++)
+                {
+                    html.append("<a href=\"/boom").append(i).append(".html\">x</a>");
+                }
+                for(int i = 0; i < PAGES; i++)
+                {
+                    html.append("<a href=\"/page").append(i).append(".html\">x</a>");
+                }
+            }
+            html.append("</html>");
+            return CompletableFuture.completedFuture(new Page(html.toString().getBytes()));
+        }
+    }
+
+    private static class Page implements FetchResponse
+    {
+        private final byte[] body;
+
+        Page(byte[] body)
+        {
+            this.body = body;
+        }
+
+        public int getStatusCode()
+        {
+            return 200;
+        }
+
+        public String getStatusLine()
+        {
+            return "HTTP/1.1 200 OK";
+        }
+
+        public String getHeader(String name)
+        {
+            return name.equalsIgnoreCase("Content-Type") ? getContentType() : null;
+        }
+
+        public Map getHeaders()
+        {
+            Map headers = new HashMap();
+            headers.put("Content-Type", Collections.singletonList(getContentType()));
+            return headers;
+        }
+
+        public String getContentType()
+        {
+            return "text/html";
+        }
+
+        public long getContentLength()
+        {
+            return body.length;
+        }
+
+        public InputStream getBody()
+        {
+            return new ByteArrayInputStream(body);
+        }
+
+        public long transferBody(FileChannel out) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            while(buffer.hasRemaining())
+            {
+                out.write(buffer);
+            }
+            return body.length;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    private void crawl(boolean virtualThreads) throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty("saveRootDirectory", getTempDirectory().getPath());
+        props.setProperty("startLocation", HOST + "/index.html");
+        props.setProperty("urlMatch", "example.com");
+        props.setProperty("spiderThreads", "2");
+        props.setProperty("maxFetchesPerHost", "1");
+        props.setProperty("virtualThreads", String.valueOf(virtualThreads));
+        PageFetcher fetcher = new PageFetcher();
+        Spider spider = new Spider(new SpiderConfig(props), fetcher);
+
+        spider.start();
+        long deadline = System.currentTimeMillis() + 20000;
+        while(spider.isRunning() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        boolean finished = !spider.isRunning();
+        if(!finished)
+        {
+            spider.stop();
+        }
+        assertTrue("crawl finished, " + fetches(fetcher) + " fetched", finished);
+        assertEquals("fetched", 1 + BOOMS + PAGES, fetcher.fetches.get());
+    }
+
+    private static int fetches(PageFetcher fetcher)
+    {
+        return fetcher.fetches.get();
+    }
+
+    public void testThrowingFetchesWithOneFetchPerHost() throws Exception
+    {
+        crawl(false);
+    }
+
+    public void testThrowingFetchesWithOneFetchPerHostInTasks() throws Exception
+    {
+        crawl(true);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+
+/**
+ * A minimal test case, so the tests need nothing but the JDK. Every
+ * public no-argument method whose name starts with "test" is a test; it
+ * passes unless it throws. Run them all with AllTests.
+ */
+public abstract class SpiderTestCase
+{
+    /** Thrown when an assertion fails. */
+    public static class AssertionFailed extends RuntimeException
+    {
+        public AssertionFailed(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * Run every test method, each on a fresh instance, reporting failures
+     * to System.out.
+     *
+     * @return The number of tests that failed.
+     */
+    public static int run(Class testClass)
+    {
+        int failures = 0;
+        Method[] methods = testClass.getMethods();
+        for(int i = 0; i < methods.length; i++)
+        {
+            Method m = methods[i];
+            if(!m.getName().startsWith("test") || m.getParameterTypes().length != 0 || Modifier.isStatic(m.getModifiers()))
+            {
+                continue;
+            }
+            String name = testClass.getName() + "." + m.getName();
+            try
+            {
+                SpiderTestCase test = (SpiderTestCase) testClass.getDeclaredConstructor(new Class[0]).newInstance(new Object[0]);
+                try
+                {
+                    m.invoke(test, new Object[0]);
+                }
+                finally
+                {
+                    test.tearDown();
+                }
+                System.out.println("PASS " + name);
+            }
+            catch(InvocationTargetException ite)
+            {
+                failures++;
+                System.out.println("FAIL " + name + ": " + ite.getCause());
+                ite.getCause().printStackTrace(System.out);
+            }
+            catch(Exception e)
+            {
+                failures++;
+                System.out.println("FAIL " + name + ": " + e);
+                e.printStackTrace(System.out);
+            }
+        }
+        return failures;
+    }
+
+    private File tempDirectory;
+
+    /**
+     * A directory for this test, deleted after it has run.
+     */
+    protected File getTempDirectory() throws IOException
+    {
+        if(tempDirectory == null)
+        {
+            tempDirectory = Files.createTempDirectory("weblech-test").toFile();
+        }
+        return tempDirectory;
+    }
+
+    protected void tearDown()
+    {
+        if(tempDirectory != null)
+        {
+            delete(tempDirectory);
+        }
+    }
+
+    private static void delete(File f)
+    {
+        File[] children = f.listFiles();
+        if(children != null)
+        {
+            for(int i = 0; i < children.length; i++)
+            {
+                delete(children[i]);
+            }
+        }
+        f.delete();
+    }
+
+    protected static void assertTrue(String message, boolean condition)
+    {
+        if(!condition)
+        {
+            throw new AssertionFailed(message);
+        }
+    }
+
+    protected static void assertEquals(String message, long expected, long actual)
+    {
+        if(expected != actual)
+        {
+            throw new AssertionFailed(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    protected static void assertEquals(String message, Object expected, Object actual)
+    {
+        if(expected == null ? actual != null : !expected.equals(actual))
+        {
+            throw new AssertionFailed(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.File;
+import java.util.Properties;
+
+/**
+ * Spilling the frontier to segment files and reading it back.
+ */
+public class SpillingURLQueueTest extends SpiderTestCase
+{
+    private static URLToDownload url(int n) throws Exception
+    {
+        return new URLToDownload(new CanonicalURL("http://example.com/page" + n + ".html"), n % 3);
+    }
+
+    private static int segmentCount(File dir)
+    {
+        String[] names = dir.list();
+        int count = 0;
+        for(int i = 0; names != null && i < names.length; i++)
+        {
+            if(names[i].endsWith(".seg"))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testFifoSpillsAndReadsBackInOrder() throws Exception
+    {
+        File dir = getTempDirectory();
+        SpillingURLQueue q = new SpillingURLQueue(false, 4, dir);
+        for(int i = 0; i < 20; i++)
+        {
+            q.add(url(i));
+        }
+        assertEquals("size", 20, q.size());
+        assertTrue("spilled to segments", segmentCount(dir) > 0);
+
+        for(int i = 0; i < 20; i++)
+        {
+            URLToDownload u2d = q.poll();
+            assertEquals("url " + i, url(i).getURL(), u2d.getURL());
+            assertEquals("depth " + i, i % 3, u2d.getDepth());
+        }
+        assertTrue("empty", q.poll() == null);
+        assertEquals("size", 0, q.size());
+        assertEquals("segments left", 0, segmentCount(dir));
+        assertEquals("lost", 0, q.takeLost());
+    }
+
+    public void testLifoSpillsAndReadsBackMostRecentFirst() throws Exception
+    {
+        File dir = getTempDirectory();
+        SpillingURLQueue q = new SpillingURLQueue(true, 4, dir);
+        for(int i = 0; i < 20; i++)
+        {
+            q.add(url(i));
+        }
+        assertTrue("spilled to segments", segmentCount(dir) > 0);
+
+        for(int i = 19; i >= 0; i--)
+        {
+            assertEquals("url " + i, url(i).getURL(), q.poll().getURL());
+        }
+        assertTrue("empty", q.poll() == null);
+        assertEquals("segments left", 0, segmentCount(dir));
+    }
+
+    public void testInterleavedAddAndPollKeepsFifoOrder() throws Exception
+    {
+        SpillingURLQueue q = new SpillingURLQueue(false, 4, getTempDirectory());
+        int added = 0;
+        int polled = 0;
+        for(int round = 0; round < 10; round++)
+        {
+            for(int i = 0; i < 7; i++)
+            {
+                q.add(url(added++));
+            }
+            for(int i = 0; i < 5; i++)
+            {
+                assertEquals("url " + polled, url(polled).getURL(), q.poll().getURL());
+                polled++;
+            }
+        }
+        while(q.size() > 0)
+        {
+            assertEquals("url " + polled, url(polled).getURL(), q.poll().getURL());
+            polled++;
+        }
+        assertEquals("all polled", added, polled);
+    }
+
+    public void testUnreadableSegmentIsCountedAsLost() throws Exception
+    {
+        File dir = getTempDirectory();
+        SpillingURLQueue q = new SpillingURLQueue(false, 4, dir);
+        for(int i = 0; i < 20; i++)
+        {
+            q.add(url(i));
+        }
+        File[] segments = dir.listFiles();
+        for(int i = 0; i < segments.length; i++)
+        {
+            segments[i].delete();
+        }
+
+        int polled = 0;
+        while(q.poll() != null)
+        {
+            polled++;
+        }
+        assertEquals("returned and lost", 20, polled + q.takeLost());
+        assertTrue("some lost", polled < 20);
+        assertEquals("size", 0, q.size());
+        assertEquals("lost only reported once", 0, q.takeLost());
+    }
+
+    public void testDeleteSegmentsOnlyDeletesSegments() throws Exception
+    {
+        File dir = getTempDirectory();
+        File stale = new File(dir, "frontier123.seg");
+        File other = new File(dir, "notes.txt");
+        stale.createNewFile();
+        other.createNewFile();
+
+        SpillingURLQueue.deleteSegments(dir);
+        assertTrue("stale segment deleted", !stale.exists());
+        assertTrue("other file kept", other.exists());
+        SpillingURLQueue.deleteSegments(new File(dir, "missing"));
+    }
+
+    private SpiderConfig config(int limit) throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty("saveRootDirectory", getTempDirectory().getPath());
+        props.setProperty("startLocation", "http://example.com/");
+        props.setProperty("hostFrontierMemoryLimit", String.valueOf(limit));
+        return new SpiderConfig(props);
+    }
+
+    public void testDownloadQueueDeletesStaleSegments() throws Exception
+    {
+        SpiderConfig config = config(4);
+        File dir = new File(config.getSaveRootDirectory(), HostQueue.FRONTIER_DIRECTORY);
+        dir.mkdirs();
+        File stale = new File(dir, "frontier42.seg");
+        stale.createNewFile();
+
+        new DownloadQueue(config);
+        assertTrue("stale segment deleted", !stale.exists());
+    }
+
+    public void testDownloadQueueDrainsDespiteLostSegments() throws Exception
+    {
+        SpiderConfig config = config(4);
+        DownloadQueue queue = new DownloadQueue(config);
+        for(int i = 0; i < 20; i++)
+        {
+            queue.queueURL(url(i));
+        }
+        File[] segments = new File(config.getSaveRootDirectory(), HostQueue.FRONTIER_DIRECTORY).listFiles();
+        assertTrue("spilled", segments.length > 0);
+        for(int i = 0; i < segments.length; i++)
+        {
+            segments[i].delete();
+        }
+
+        int taken = 0;
+        for(int tries = 0; queue.size() > 0 && tries < 100; tries++)
+        {
+            URLToDownload u2d = queue.getNextInQueue();
+            if(u2d != null)
+            {
+                taken++;
+                queue.downloadFinished(u2d);
+            }
+        }
+        assertEquals("size", 0, queue.size());
+        assertTrue("some taken, some lost", taken > 0 && taken < 20);
+        assertEquals("no host left waiting", -1, queue.getDelayUntilReady());
+    }
+}
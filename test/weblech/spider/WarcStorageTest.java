@@ -0,0 +1,130 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Writing a WARC segment and reading back its records and index.
+ */
+public class WarcStorageTest extends SpiderTestCase
+{
+    private static final byte[] BODY = "abc".getBytes(StandardCharsets.ISO_8859_1);
+    /** SHA-1 of BODY, in hex and in base 32. */
+    private static final String HEX_DIGEST = "a9993e364706816aba3e25717850c26c9cd0d89d";
+    private static final String BASE32_DIGEST = "VGMT4NSHA2AWVOR6EVYXQUGCNSONBWE5";
+
+    private SpiderConfig config() throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty("saveRootDirectory", getTempDirectory().getPath());
+        props.setProperty("startLocation", "http://example.com/");
+        props.setProperty("storage", "warc");
+        props.setProperty("dedup", "true");
+        return new SpiderConfig(props);
+    }
+
+    private File segment() throws Exception
+    {
+        return new File(getTempDirectory(), WarcStorage.SEGMENT_PREFIX + "00000" + WarcStorage.SEGMENT_SUFFIX);
+    }
+
+    public void testBase32()
+    {
+        assertEquals("SHA-1 of abc", BASE32_DIGEST, WarcStorage.toBase32(HEX_DIGEST));
+        assertEquals("padded", "MY======", WarcStorage.toBase32("66"));
+        assertEquals("padded", "MZXW6===", WarcStorage.toBase32("666f6f"));
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        SpiderConfig config = config();
+        CanonicalURL typed = new CanonicalURL("http://example.com/a.html");
+        CanonicalURL untyped = new CanonicalURL("http://example.com/b");
+        Dedup dedup = new Dedup();
+        WarcStorage storage = new WarcStorage(config, dedup);
+        storage.store(new URLObject(typed, "text/html", BODY, config));
+        storage.store(new URLObject(untyped, null, BODY, config));
+        storage.close();
+        assertEquals("duplicates", 1, dedup.getDuplicates());
+        assertEquals("bytes stored", BODY.length, dedup.getBytesStored());
+        assertEquals("bytes saved", BODY.length, dedup.getBytesSaved());
+
+        String warc = new String(Files.readAllBytes(segment().toPath()), StandardCharsets.ISO_8859_1);
+        assertTrue("response record", warc.indexOf("WARC-Type: response\r\nWARC-Record-ID") >= 0);
+        assertTrue("revisit record", warc.indexOf("WARC-Type: revisit\r\n") >= 0);
+        assertTrue("payload digest", warc.indexOf("WARC-Payload-Digest: sha1:" + BASE32_DIGEST + "\r\n") >= 0);
+        assertTrue("no hex digest", warc.indexOf(HEX_DIGEST) < 0);
+        assertTrue("body", warc.indexOf("Content-Type: text/html\r\nContent-Length: 3\r\n\r\nabc\r\n\r\n") >= 0);
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(segment().getPath() + WarcStorage.INDEX_SUFFIX))));
+        try
+        {
+            assertEquals("url", typed.toExternalForm(), in.readUTF());
+            assertEquals("segment", segment().getName(), in.readUTF());
+            long offset = in.readLong();
+            assertEquals("body at", warc.indexOf("abc\r\n\r\n"), offset);
+            assertEquals("size", BODY.length, in.readLong());
+            assertEquals("content type", "text/html", in.readUTF());
+            in.readLong();
+            assertEquals("digest", HEX_DIGEST, in.readUTF());
+
+            assertEquals("url", untyped.toExternalForm(), in.readUTF());
+            assertEquals("segment", segment().getName(), in.readUTF());
+            assertEquals("same body", offset, in.readLong());
+            assertEquals("size", BODY.length, in.readLong());
+            assertEquals("no content type", "", in.readUTF());
+            in.readLong();
+            assertEquals("digest", HEX_DIGEST, in.readUTF());
+            assertEquals("nothing more", -1, in.read());
+        }
+        finally
+        {
+            in.close();
+        }
+
+        storage = new WarcStorage(config, new Dedup());
+        try
+        {
+            URLObject obj = storage.lookup(typed, null);
+            assertEquals("type read back", "text/html", obj.getContentType());
+            assertEquals("body read back", "abc", new String(obj.getContent(), StandardCharsets.ISO_8859_1));
+            obj = storage.lookup(untyped, null);
+            assertTrue("saved", obj.existsOnDisk());
+            assertEquals("body read back", "abc", new String(obj.getContent(), StandardCharsets.ISO_8859_1));
+        }
+        finally
+        {
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An approximate SeenURLSet: a scalable Bloom filter. When the current
+ * filter reaches its capacity a new one twice the size is added with a
+ * tighter error rate, so the overall false-positive rate stays under the
+ * configured one however many URLs are added. A false positive means a
+ * URL is wrongly treated as seen and not downloaded; URLs are never
+ * downloaded twice.
+ */
+public class BloomURLSet implements SeenURLSet
+{
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    /** Each new filter's error rate is this times the previous one's. */
+    private static final double TIGHTENING_RATIO = 0.5;
+
+    private final double falsePositiveRate;
+    private final ArrayList filters;
+    private int size;
+
+    public BloomURLSet(double falsePositiveRate)
+    {
+        this.falsePositiveRate = falsePositiveRate;
+        filters = new ArrayList();
+        // Error rates form a geometric series summing to falsePositiveRate
+        filters.add(new Filter(INITIAL_CAPACITY, falsePositiveRate * (1 - TIGHTENING_RATIO)));
+        size = 0;
+    }
+
+    public synchronized boolean checkAndAdd(CanonicalURL u)
+    {
+        return add(u.getFingerprint());
+    }
+
+    public synchronized boolean checkAndAdd(long fingerprint)
+    {
+        return add(fingerprint);
+    }
+
+    public synchronized List checkAndAdd(List urls)
+    {
+        ArrayList result = new ArrayList();
+        for(Iterator i = urls.iterator(); i.hasNext(); )
+        {
+            CanonicalURL u = (CanonicalURL) i.next();
+            if(add(u.getFingerprint()))
+            {
+                result.add(u);
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    public double getFalsePositiveRate()
+    {
+        return falsePositiveRate;
+    }
+
+    private boolean add(long fp)
+    {
+        long h1 = fp;
+        long h2 = URLFingerprint.mix(fp ^ 0x9e3779b97f4a7c15L) | 1;
+        for(int i = 0; i < filters.size(); i++)
+        {
+            if(((Filter) filters.get(i)).mightContain(h1, h2))
+            {
+                return false;
+            }
+        }
+
+        Filter current = (Filter) filters.get(filters.size() - 1);
+        if(current.count >= current.capacity)
+        {
+            current = new Filter(current.capacity * 2, current.errorRate * TIGHTENING_RATIO);
+            filters.add(current);
+        }
+        current.put(h1, h2);
+        size++;
+        return true;
+    }
+
+    /** One fixed-size Bloom filter, indexed by double hashing. */
+    private static class Filter implements Serializable
+    {
+        final long capacity;
+        final double errorRate;
+        final long[] bits;
+        final long numBits;
+        final int numHashes;
+        long count;
+
+        Filter(long capacity, double errorRate)
+        {
+            this.capacity = capacity;
+            this.errorRate = errorRate;
+            double ln2 = Math.log(2);
+            long m = (long) Math.ceil(-capacity * Math.log(errorRate) / (ln2 * ln2));
+            bits = new long[(int) ((m + 63) / 64)];
+            numBits = bits.length * 64L;
+            numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * ln2));
+            count = 0;
+        }
+
+        boolean mightContain(long h1, long h2)
+        {
+            for(int i = 0; i < numHashes; i++)
+            {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                if((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(long h1, long h2)
+        {
+            for(int i = 0; i < numHashes; i++)
+            {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                bits[(int) (bit >>> 6)] |= (1L << bit);
+            }
+            count++;
+        }
+    }
+}
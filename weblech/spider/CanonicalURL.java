@@ -0,0 +1,182 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.Serializable;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * A normalized URL for use as a key in the spider's sets and maps.
+ *
+ * java.net.URL resolves host names in equals() and hashCode(), so a set
+ * of URLs can block on DNS. A CanonicalURL compares on its normalized
+ * string form only, with the hash worked out once up front, and never
+ * touches the network. Normalization lower-cases the scheme and host,
+ * drops a default port and the fragment, and turns an empty path into
+ * "/".
+ */
+public final class CanonicalURL implements Serializable
+{
+    private final String url;
+    private final String host;
+    private final int hash;
+    private final long fingerprint;
+    /** The java.net.URL for url, made when first asked for. */
+    private transient URL javaURL;
+
+    public CanonicalURL(URL u)
+    {
+        StringBuffer sb = new StringBuffer();
+        String protocol = u.getProtocol().toLowerCase();
+        sb.append(protocol);
+        sb.append(':');
+        host = u.getHost() == null ? "" : u.getHost().toLowerCase();
+        if(u.getAuthority() != null)
+        {
+            sb.append("//");
+            if(u.getUserInfo() != null)
+            {
+                sb.append(u.getUserInfo());
+                sb.append('@');
+            }
+            sb.append(host);
+            int port = u.getPort();
+            if(port != -1 && port != u.getDefaultPort())
+            {
+                sb.append(':');
+                sb.append(port);
+            }
+        }
+        String path = u.getPath();
+        if(path == null || path.length() == 0)
+        {
+            path = "/";
+        }
+        sb.append(path);
+        if(u.getQuery() != null)
+        {
+            sb.append('?');
+            sb.append(u.getQuery());
+        }
+        url = sb.toString();
+        hash = url.hashCode();
+        fingerprint = URLFingerprint.fingerprint(url);
+    }
+
+    /**
+     * Wrap a URL string that is known to be in normal form already.
+     */
+    CanonicalURL(String normalized, String host)
+    {
+        this.url = normalized;
+        this.host = host;
+        hash = url.hashCode();
+        fingerprint = URLFingerprint.fingerprint(url);
+    }
+
+    /**
+     * Parse an absolute URL.
+     */
+    public CanonicalURL(String spec) throws MalformedURLException
+    {
+        this(new URL(spec));
+    }
+
+    /**
+     * Resolve a possibly relative URL against this one.
+     */
+    public CanonicalURL resolve(String spec) throws MalformedURLException
+    {
+        return new CanonicalURL(new URL(toURL(), spec));
+    }
+
+    /**
+     * The host name, lower-cased. Never resolved.
+     */
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * A 64-bit fingerprint of the normalized form.
+     */
+    public long getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * The java.net.URL for this URL, for opening connections. Don't put
+     * it in a set.
+     */
+    public URL toURL()
+    {
+        if(javaURL == null)
+        {
+            try
+            {
+                javaURL = new URL(url);
+            }
+            catch(MalformedURLException murle)
+            {
+                // Can't happen, url came from a valid URL
+                throw new IllegalStateException(murle.getMessage());
+            }
+        }
+        return javaURL;
+    }
+
+    public String toExternalForm()
+    {
+        return url;
+    }
+
+    public boolean equals(Object o)
+    {
+        if(o == this)
+        {
+            return true;
+        }
+        if(!(o instanceof CanonicalURL))
+        {
+            return false;
+        }
+        CanonicalURL other = (CanonicalURL) o;
+        return hash == other.hash && url.equals(other.url);
+    }
+
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    public String toString()
+    {
+        return url;
+    }
+}
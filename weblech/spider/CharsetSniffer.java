@@ -0,0 +1,245 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import weblech.ui.LechLogger;
+
+/**
+ * Works out the character set of an HTML page from its raw bytes, looking
+ * in the same order a browser does: a byte order mark, then the charset
+ * parameter of the Content-Type header, then a &lt;meta&gt; declaration near
+ * the top of the page.
+ */
+public class CharsetSniffer
+{
+    /** How far into the page to look for a &lt;meta&gt; declaration. */
+    static final int META_SCAN_LIMIT = 1024;
+
+    /** The characters HTMLLinkTokenizer needs to find in the raw bytes. */
+    private static final String MARKUP_CHARS = "<>=\"'/!- \t\n\r\f";
+    private static final byte[] MARKUP_BYTES = asciiBytes(MARKUP_CHARS);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset WINDOWS_1252 = Charset.forName("windows-1252");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    /**
+     * @param content     The page.
+     * @param contentType The Content-Type header, or null.
+     * @return The page's charset, or windows-1252 (the HTML default for
+     *         unlabelled pages) if it doesn't say.
+     */
+    public static Charset detect(byte[] content, String contentType)
+    {
+        Charset cs = fromBOM(content);
+        if(cs == null)
+        {
+            cs = lookup(charsetParameter(contentType, 0));
+        }
+        if(cs == null)
+        {
+            cs = fromMeta(content);
+        }
+        return cs == null ? WINDOWS_1252 : cs;
+    }
+
+    /**
+     * Work out the charset of a page in a buffer, from its first kilobyte.
+     * The buffer's position isn't changed.
+     */
+    public static Charset detect(ByteBuffer content, String contentType)
+    {
+        byte[] head = new byte[Math.min(META_SCAN_LIMIT, content.remaining())];
+        content.duplicate().get(head);
+        return detect(head, contentType);
+    }
+
+    /**
+     * The length of the byte order mark at the start of content, if any.
+     */
+    public static int bomLength(byte[] content)
+    {
+        if(content.length >= 3 && (content[0] & 0xff) == 0xef && (content[1] & 0xff) == 0xbb && (content[2] & 0xff) == 0xbf)
+        {
+            return 3;
+        }
+        if(content.length >= 2 && (((content[0] & 0xff) == 0xfe && (content[1] & 0xff) == 0xff)
+                || ((content[0] & 0xff) == 0xff && (content[1] & 0xff) == 0xfe)))
+        {
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Whether markup in this charset is encoded byte for byte as ASCII, so
+     * the tokenizer can work on the raw bytes. UTF-16 and friends must be
+     * decoded first.
+     */
+    public static boolean isAsciiCompatible(Charset cs)
+    {
+        if(cs.name().toUpperCase().startsWith("ISO-2022") || !cs.canEncode())
+        {
+            // Stateful, escape sequences change what the bytes mean
+            return false;
+        }
+        try
+        {
+            return Arrays.equals(MARKUP_BYTES, MARKUP_CHARS.getBytes(cs));
+        }
+        catch(UnsupportedOperationException uoe)
+        {
+            return false;
+        }
+    }
+
+    private static Charset fromBOM(byte[] content)
+    {
+        if(bomLength(content) == 3)
+        {
+            return UTF_8;
+        }
+        if(bomLength(content) == 2)
+        {
+            return (content[0] & 0xff) == 0xfe ? UTF_16BE : UTF_16LE;
+        }
+        return null;
+    }
+
+    /**
+     * Look for &lt;meta charset="..."&gt; or &lt;meta http-equiv="Content-Type"
+     * content="...; charset=..."&gt; in the top of the page.
+     */
+    private static Charset fromMeta(byte[] content)
+    {
+        int limit = Math.min(content.length, META_SCAN_LIMIT);
+        for(int i = 0; i < limit; i++)
+        {
+            if(content[i] == '<' && matches(content, i + 1, limit, "meta"))
+            {
+                int end = i + 5;
+                while(end < limit && content[end] != '>')
+                {
+                    end++;
+                }
+                String tag = new String(content, i, end - i, ISO_8859_1);
+                Charset cs = lookup(charsetParameter(tag, 5));
+                if(cs != null)
+                {
+                    return cs;
+                }
+                i = end;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find "charset=" in s from the given position and return its value,
+     * with any quotes stripped, or null.
+     */
+    private static String charsetParameter(String s, int from)
+    {
+        if(s == null)
+        {
+            return null;
+        }
+        int idx = s.toLowerCase().indexOf("charset", from);
+        if(idx < 0)
+        {
+            return null;
+        }
+        int pos = idx + 7;
+        while(pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+        {
+            pos++;
+        }
+        if(pos >= s.length() || s.charAt(pos) != '=')
+        {
+            return null;
+        }
+        pos++;
+        while(pos < s.length() && (Character.isWhitespace(s.charAt(pos)) || s.charAt(pos) == '"' || s.charAt(pos) == '\''))
+        {
+            pos++;
+        }
+        int end = pos;
+        while(end < s.length() && "\"'; \t\r\n>/".indexOf(s.charAt(end)) < 0)
+        {
+            end++;
+        }
+        return end > pos ? s.substring(pos, end) : null;
+    }
+
+    private static Charset lookup(String name)
+    {
+        if(name == null)
+        {
+            return null;
+        }
+        try
+        {
+            return Charset.forName(name);
+        }
+        catch(IllegalArgumentException iae)
+        {
+            LechLogger.debug("Unknown charset " + name);
+            return null;
+        }
+    }
+
+    private static boolean matches(byte[] content, int pos, int limit, String lowerCase)
+    {
+        if(pos + lowerCase.length() > limit)
+        {
+            return false;
+        }
+        for(int i = 0; i < lowerCase.length(); i++)
+        {
+            if(Character.toLowerCase((char) (content[pos + i] & 0xff)) != lowerCase.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] asciiBytes(String s)
+    {
+        byte[] b = new byte[s.length()];
+        for(int i = 0; i < b.length; i++)
+        {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
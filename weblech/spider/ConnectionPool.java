@@ -0,0 +1,216 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the connections a Fetcher has open to each host, shared
+ * by all the Spider's threads. It bounds how many are in use per host at
+ * once, and makes sure responses are read to the end, error responses
+ * included, so their connections can go back to be reused.
+ *
+ * The connections themselves are kept by the fetch engines, in keep-alive
+ * caches shared by the whole JVM. Those are sized and timed out by system
+ * properties read once, when first used, so they're settings for
+ * launching the JVM: http.maxConnections and http.keepAlive.time.server
+ * (JDK 19 and later) for HttpURLConnection,
+ * jdk.httpclient.keepalive.timeout for HttpClient. Neither engine says
+ * when it reuses a connection, so the pool doesn't count reuse.
+ */
+public class ConnectionPool
+{
+    /** Most bytes read from an unwanted body to save its connection. */
+    public static final int DRAIN_LIMIT = 64 * 1024;
+
+    private final int maxPerHost;
+    /** Map of scheme, host and port to a Semaphore, if there's a limit. */
+    private final Map hosts = new ConcurrentHashMap();
+
+    private final AtomicLong drained = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    public ConnectionPool(SpiderConfig config)
+    {
+        this(config.getMaxConnectionsPerHost());
+    }
+
+    /**
+     * @param maxPerHost Most connections in use to a host at once, or 0
+     *                   for no limit.
+     */
+    public ConnectionPool(int maxPerHost)
+    {
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * The key connections to a URL's host are kept under.
+     */
+    public static String key(CanonicalURL url)
+    {
+        URL u = url.toURL();
+        int port = u.getPort() < 0 ? u.getDefaultPort() : u.getPort();
+        return u.getProtocol() + "://" + u.getHost() + ":" + port;
+    }
+
+    /**
+     * The permits for connections to a host, or null if there's no limit.
+     */
+    private Semaphore permits(String key)
+    {
+        if(maxPerHost <= 0)
+        {
+            return null;
+        }
+        Semaphore permits = (Semaphore) hosts.get(key);
+        if(permits == null)
+        {
+            permits = new Semaphore(maxPerHost, true);
+            Semaphore existing = (Semaphore) hosts.putIfAbsent(key, permits);
+            if(existing != null)
+            {
+                permits = existing;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * Take a connection to a host, waiting if as many as allowed are in
+     * use. Must be given back with release().
+     */
+    public void acquire(String key) throws InterruptedIOException
+    {
+        Semaphore permits = permits(key);
+        if(permits != null)
+        {
+            try
+            {
+                permits.acquire();
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection to " + key);
+            }
+        }
+    }
+
+    /**
+     * Give a connection back.
+     */
+    public void release(String key)
+    {
+        Semaphore permits = permits(key);
+        if(permits != null)
+        {
+            permits.release();
+        }
+    }
+
+    /**
+     * Read what's left of a body, if it's not too much, and close it.
+     *
+     * @return Whether it was read to the end, so its connection can be
+     *         reused.
+     */
+    public boolean drain(InputStream in)
+    {
+        if(in == null)
+        {
+            return true;
+        }
+        boolean finished = false;
+        try
+        {
+            byte[] buf = new byte[8192];
+            long total = 0;
+            int n;
+            while(total <= DRAIN_LIMIT && (n = in.read(buf)) >= 0)
+            {
+                total += n;
+            }
+            finished = total <= DRAIN_LIMIT;
+            drained.addAndGet(total);
+        }
+        catch(IOException ioe)
+        {
+            finished = false;
+        }
+        finally
+        {
+            try
+            {
+                in.close();
+            }
+            catch(IOException ignored)
+            {
+            }
+        }
+        if(!finished)
+        {
+            discarded.incrementAndGet();
+        }
+        return finished;
+    }
+
+    /**
+     * Count bytes read from an unwanted body to save its connection.
+     */
+    public void drained(long bytes, boolean finished)
+    {
+        drained.addAndGet(bytes);
+        if(!finished)
+        {
+            discarded.incrementAndGet();
+        }
+    }
+
+    /** Bytes read from unwanted bodies to save their connections. */
+    public long getBytesDrained()
+    {
+        return drained.get();
+    }
+
+    /** Connections closed because their bodies were too big to drain. */
+    public long getDiscarded()
+    {
+        return discarded.get();
+    }
+
+    public String toString()
+    {
+        return drained.get() + " bytes drained, " + discarded.get() + " connections dropped undrained";
+    }
+}
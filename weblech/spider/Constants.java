@@ -11,8 +11,10 @@ package weblech.spider;
 public interface Constants
 {
 
-    /** How often to check the queue status */
-    int QUEUE_CHECK_INTERVAL = 500;
     /** How long to pause for threads to finish before exitting */
     int SPIDER_STOP_PAUSE = 500;
+    /** File the crawl is journalled to when checkpointing */
+    String JOURNAL_FILE = "spider.journal";
+    /** How often the mailto log is flushed when not checkpointing */
+    long MAILTO_FLUSH_INTERVAL = 1000;
 }
@@ -0,0 +1,468 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import weblech.ui.LechLogger;
+
+/**
+ * An append-only journal of the crawl, from which a stopped crawl can be
+ * resumed. Spider threads record URLs being queued and completed; a
+ * background thread appends the records to the journal
+ * file, syncing once per batch of whatever has built up meanwhile (group
+ * commit). So the cost of journalling is proportional to the work done,
+ * and nobody waits for the disk.
+ *
+ * Every checkpoint interval the journal is compacted if it has more than
+ * doubled since last time: completed URLs are reduced to their
+ * fingerprint, and complete records dropped. Compaction runs on the
+ * writer thread and writes a new file alongside, which only replaces the
+ * journal once complete; records keep being accepted meanwhile.
+ */
+public class CrawlJournal implements Runnable
+{
+    private static final byte ENQUEUE = 1;
+    /** Taken from the queue. No longer written, skipped when read. */
+    private static final byte DEQUEUE = 2;
+    private static final byte COMPLETE = 3;
+    /** A completed URL, by fingerprint only. */
+    private static final byte SEEN = 4;
+
+    /** Queued by close() to stop the writer. */
+    private static final byte[] CLOSE = new byte[0];
+
+    /** Don't bother compacting journals smaller than this. */
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final long compactInterval;
+    /** Records waiting to be written, each a byte[]. */
+    private final LinkedBlockingQueue pending;
+    private final Thread writer;
+
+    private FileOutputStream fos;
+    private DataOutputStream out;
+    private long sizeAfterCompaction;
+    private long lastCompaction;
+    private volatile boolean closed;
+
+    /**
+     * Open a journal and start its writer thread.
+     *
+     * @param append Whether to carry on with an existing journal (when
+     *               resuming a crawl) or start a fresh one.
+     */
+    public CrawlJournal(File file, long compactInterval, boolean append) throws IOException
+    {
+        this.file = file;
+        this.compactInterval = compactInterval;
+        pending = new LinkedBlockingQueue();
+        open(append);
+        sizeAfterCompaction = file.length();
+        lastCompaction = System.currentTimeMillis();
+        closed = false;
+
+        writer = new Thread(this, "Spider-Journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void open(boolean append) throws IOException
+    {
+        fos = new FileOutputStream(file, append);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+    }
+
+    public void enqueued(Collection urls)
+    {
+        for(Iterator i = urls.iterator(); i.hasNext(); )
+        {
+            enqueued((URLToDownload) i.next());
+        }
+    }
+
+    public void enqueued(URLToDownload url)
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try
+        {
+            dos.writeByte(ENQUEUE);
+            writeURL(dos, url);
+        }
+        catch(IOException ioe)
+        {
+            // Can't happen writing to memory
+        }
+        record(baos.toByteArray());
+    }
+
+    public void completed(URLToDownload url)
+    {
+        record(fingerprintRecord(COMPLETE, url.getURL().getFingerprint()));
+    }
+
+    private void record(byte[] rec)
+    {
+        if(!closed)
+        {
+            pending.add(rec);
+        }
+    }
+
+    /**
+     * Write everything recorded so far and stop the writer thread.
+     */
+    public void close()
+    {
+        if(closed)
+        {
+            return;
+        }
+        closed = true;
+        pending.add(CLOSE);
+        try
+        {
+            writer.join();
+        }
+        catch(InterruptedException ignored)
+        {
+        }
+    }
+
+    private static byte[] fingerprintRecord(byte type, long fp)
+    {
+        byte[] rec = new byte[9];
+        rec[0] = type;
+        for(int i = 0; i < 8; i++)
+        {
+            rec[1 + i] = (byte) (fp >>> (56 - 8 * i));
+        }
+        return rec;
+    }
+
+    private static void writeURL(DataOutputStream dos, URLToDownload url) throws IOException
+    {
+        dos.writeUTF(url.getURL().toExternalForm());
+        dos.writeUTF(url.getReferer() == null ? "" : url.getReferer().toExternalForm());
+        dos.writeInt(url.getDepth());
+    }
+
+    private static URLToDownload readURL(DataInputStream in) throws IOException
+    {
+        CanonicalURL u = new CanonicalURL(in.readUTF());
+        String refStr = in.readUTF();
+        CanonicalURL referer = refStr.length() == 0 ? null : new CanonicalURL(refStr);
+        return new URLToDownload(u, referer, in.readInt());
+    }
+
+    public void run()
+    {
+        List batch = new ArrayList();
+        boolean stop = false;
+        while(true)
+        {
+            try
+            {
+                Object first = pending.poll(compactInterval, TimeUnit.MILLISECONDS);
+                if(first != null)
+                {
+                    batch.add(first);
+                }
+            }
+            catch(InterruptedException ignored)
+            {
+            }
+            pending.drainTo(batch);
+
+            try
+            {
+                if(!batch.isEmpty())
+                {
+                    for(Iterator i = batch.iterator(); i.hasNext(); )
+                    {
+                        byte[] rec = (byte[]) i.next();
+                        if(rec == CLOSE)
+                        {
+                            stop = true;
+                        }
+                        out.write(rec);
+                    }
+                    out.flush();
+                    fos.getChannel().force(false);
+                    batch.clear();
+                }
+                if(stop)
+                {
+                    out.close();
+                    return;
+                }
+                if(System.currentTimeMillis() - lastCompaction > compactInterval)
+                {
+                    compactIfNeeded();
+                }
+            }
+            catch(IOException ioe)
+            {
+                LechLogger.warn("IO Exception writing crawl journal: " + ioe.getMessage(), ioe);
+                batch.clear();
+                if(stop)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compact the journal if it's grown enough. The compacted copy is
+     * written and synced under another name, then renamed over the
+     * journal; until that has worked, records keep going to the old file.
+     */
+    private void compactIfNeeded()
+    {
+        lastCompaction = System.currentTimeMillis();
+        long size = file.length();
+        if(size < MIN_COMPACT_SIZE || size < 2 * sizeAfterCompaction)
+        {
+            return;
+        }
+
+        LechLogger.debug("Compacting crawl journal, " + size + " bytes");
+        File compacted = new File(file.getPath() + ".compact");
+        FileOutputStream cfos = null;
+        try
+        {
+            writeCompacted(compacted);
+            // Opened before the rename, so it follows the file into place
+            cfos = new FileOutputStream(compacted, true);
+            if(!compacted.renameTo(file))
+            {
+                throw new IOException("Couldn't rename " + compacted + " to " + file);
+            }
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception compacting crawl journal, carrying on with the old one: " + ioe.getMessage(), ioe);
+            if(cfos != null)
+            {
+                try
+                {
+                    cfos.close();
+                }
+                catch(IOException ignored)
+                {
+                }
+            }
+            compacted.delete();
+            return;
+        }
+
+        DataOutputStream oldOut = out;
+        fos = cfos;
+        out = new DataOutputStream(new BufferedOutputStream(cfos));
+        try
+        {
+            oldOut.close();
+        }
+        catch(IOException ioe)
+        {
+            // Everything in it was written and synced before compacting
+        }
+        sizeAfterCompaction = file.length();
+        LechLogger.debug("Compacted crawl journal to " + sizeAfterCompaction + " bytes");
+    }
+
+    /**
+     * Write a compacted copy of the journal to another file and sync it.
+     */
+    private void writeCompacted(File compacted) throws IOException
+    {
+        FingerprintURLSet completed = readCompleted(file);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        FileOutputStream cfos = new FileOutputStream(compacted);
+        DataOutputStream cout = new DataOutputStream(new BufferedOutputStream(cfos));
+        try
+        {
+            while(true)
+            {
+                byte type;
+                try
+                {
+                    type = in.readByte();
+                }
+                catch(EOFException eofe)
+                {
+                    break;
+                }
+                if(type == ENQUEUE)
+                {
+                    URLToDownload u2d = readURL(in);
+                    long fp = u2d.getURL().getFingerprint();
+                    if(completed.contains(fp))
+                    {
+                        cout.write(fingerprintRecord(SEEN, fp));
+                    }
+                    else
+                    {
+                        cout.writeByte(ENQUEUE);
+                        writeURL(cout, u2d);
+                    }
+                }
+                else if(type == SEEN)
+                {
+                    cout.write(fingerprintRecord(SEEN, in.readLong()));
+                }
+                else
+                {
+                    in.readLong();
+                }
+            }
+        }
+        catch(EOFException eofe)
+        {
+            // Torn last record, drop it
+        }
+        finally
+        {
+            in.close();
+            try
+            {
+                cout.flush();
+                cfos.getChannel().force(false);
+            }
+            finally
+            {
+                cout.close();
+            }
+        }
+    }
+
+    /**
+     * Read the fingerprints of all completed URLs in a journal.
+     */
+    private static FingerprintURLSet readCompleted(File file) throws IOException
+    {
+        FingerprintURLSet completed = new FingerprintURLSet();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            while(true)
+            {
+                byte type = in.readByte();
+                if(type == ENQUEUE)
+                {
+                    readURL(in);
+                }
+                else if(type == COMPLETE)
+                {
+                    completed.checkAndAdd(in.readLong());
+                }
+                else
+                {
+                    in.readLong();
+                }
+            }
+        }
+        catch(EOFException eofe)
+        {
+            // End of journal, or a torn last record
+        }
+        finally
+        {
+            in.close();
+        }
+        return completed;
+    }
+
+    /**
+     * Rebuild crawl state from a journal: every URL queued and not
+     * completed (including any that were being downloaded) is queued
+     * again, and every URL ever queued is marked seen.
+     *
+     * @return The number of URLs queued.
+     */
+    public static int replay(File file, DownloadQueue queue, SeenURLSet seen) throws IOException
+    {
+        FingerprintURLSet completed = readCompleted(file);
+        int queued = 0;
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counter);
+        long validLength = 0;
+        try
+        {
+            while(true)
+            {
+                validLength = counter.getCount();
+                byte type = in.readByte();
+                if(type == ENQUEUE)
+                {
+                    URLToDownload u2d = readURL(in);
+                    seen.checkAndAdd(u2d.getURL());
+                    if(!completed.contains(u2d.getURL().getFingerprint()))
+                    {
+                        queue.queueURL(u2d);
+                        queued++;
+                    }
+                }
+                else if(type == SEEN)
+                {
+                    seen.checkAndAdd(in.readLong());
+                }
+                else
+                {
+                    in.readLong();
+                }
+            }
+        }
+        catch(EOFException eofe)
+        {
+            // End of journal, or a torn last record
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if(validLength < file.length())
+        {
+            // Cut off a torn last record, so records appended from now on
+            // aren't lost behind it
+            LechLogger.warn("Dropping torn record at end of crawl journal " + file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(validLength);
+            raf.close();
+        }
+        return queued;
+    }
+}
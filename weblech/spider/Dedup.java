@@ -0,0 +1,146 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Digests bodies so ones already stored can be found by their content,
+ * and counts how often they are.
+ */
+public class Dedup
+{
+    /** Digest bodies are keyed by. */
+    public static final String ALGORITHM = "SHA-1";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Count a body that wasn't stored before.
+     */
+    public void stored(long size)
+    {
+        stored.incrementAndGet();
+        bytesStored.addAndGet(size);
+    }
+
+    /**
+     * Count a body that was, so didn't need storing again.
+     */
+    public void duplicate(long size)
+    {
+        duplicates.incrementAndGet();
+        bytesSaved.addAndGet(size);
+    }
+
+    public long getDuplicates()
+    {
+        return duplicates.get();
+    }
+
+    public long getBytesStored()
+    {
+        return bytesStored.get();
+    }
+
+    public long getBytesSaved()
+    {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Percentage of bodies that were duplicates.
+     */
+    public int getHitRate()
+    {
+        long dups = duplicates.get();
+        long total = stored.get() + dups;
+        return total == 0 ? 0 : (int) (dups * 100 / total);
+    }
+
+    public String toString()
+    {
+        long dups = duplicates.get();
+        return dups + " of " + (stored.get() + dups) + " bodies duplicates (" + getHitRate() + "%), " + bytesStored.get() + " bytes stored, " + bytesSaved.get() + " bytes saved";
+    }
+
+    public static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch(NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform has to have it
+            throw new IllegalStateException(ALGORITHM + " not available");
+        }
+    }
+
+    public static String toHex(byte[] digest)
+    {
+        char[] chars = new char[digest.length * 2];
+        for(int i = 0; i < digest.length; i++)
+        {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[digest[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    public static String digest(byte[] content)
+    {
+        return toHex(newDigest().digest(content));
+    }
+
+    public static String digest(File f) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(f);
+        try
+        {
+            byte[] buf = new byte[8192];
+            int n;
+            while((n = in.read(buf)) >= 0)
+            {
+                digest.update(buf, 0, n);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+}
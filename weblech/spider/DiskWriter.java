@@ -0,0 +1,316 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes files behind the threads producing them. Bytes written to an
+ * Output are gathered into buffers, and each full buffer is queued for a
+ * writer thread to write out through a FileChannel, so a slow disk holds
+ * up a download only once the writer's queue is full.
+ *
+ * Each file is given to one writer thread, which is a single-threaded
+ * PipelineStage, so its buffers are written in order; tasks queued after
+ * it with then() run once it's been written and closed.
+ */
+public class DiskWriter
+{
+    /** Never force files to disk, leave it to the operating system. */
+    public static final String FSYNC_NEVER = "never";
+    /** Force each file to disk before it's closed. */
+    public static final String FSYNC_ALWAYS = "always";
+
+    private final PipelineStage[] writers;
+    private final AtomicInteger nextWriter = new AtomicInteger();
+    private final int bufferSize;
+    private final boolean directBuffers;
+    private final boolean fsync;
+    /** Buffers that have been written out, to be filled again. */
+    private final BlockingQueue freeBuffers;
+
+    public DiskWriter(SpiderConfig config)
+    {
+        writers = new PipelineStage[Math.max(1, config.getWriterThreads())];
+        for(int i = 0; i < writers.length; i++)
+        {
+            writers[i] = new PipelineStage("writer-" + (i + 1), 1, config.getWriterQueueSize());
+        }
+        bufferSize = Math.max(1024, config.getWriterBufferSize());
+        directBuffers = config.useDirectBuffers();
+        fsync = FSYNC_ALWAYS.equalsIgnoreCase(config.getFsync());
+        // Enough to keep every queue full
+        freeBuffers = new ArrayBlockingQueue(writers.length * (Math.max(1, config.getWriterQueueSize()) + 1));
+    }
+
+    /**
+     * Start writing a file, which must exist already. It's truncated when
+     * the first buffer is written.
+     */
+    public Output open(File f)
+    {
+        int i = (nextWriter.getAndIncrement() & Integer.MAX_VALUE) % writers.length;
+        return new Output(f, writers[i]);
+    }
+
+    /**
+     * Wait for every file to be written, and stop the writer threads.
+     */
+    public void shutdown()
+    {
+        for(int i = 0; i < writers.length; i++)
+        {
+            writers[i].shutdown();
+        }
+    }
+
+    private ByteBuffer takeBuffer()
+    {
+        ByteBuffer buf = (ByteBuffer) freeBuffers.poll();
+        if(buf == null)
+        {
+            buf = directBuffers ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    private void giveBack(ByteBuffer buf)
+    {
+        // Dropped if there are plenty spare
+        freeBuffers.offer(buf);
+    }
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        for(int i = 0; i < writers.length; i++)
+        {
+            if(i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(writers[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A file being written behind. Only one thread may write to it.
+     */
+    public class Output extends OutputStream
+    {
+        private final File file;
+        private final PipelineStage writer;
+        private final CountDownLatch written = new CountDownLatch(1);
+        /** Being filled, or null. */
+        private ByteBuffer buffer;
+        private boolean closed;
+        /** Only used by the writer thread. */
+        private FileChannel channel;
+        /** What writing the file failed with, or null. */
+        private volatile IOException failure;
+
+        Output(File file, PipelineStage writer)
+        {
+            this.file = file;
+            this.writer = writer;
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if(failure != null)
+            {
+                // Stop early rather than fill buffers nobody will write
+                throw failure;
+            }
+            while(len > 0)
+            {
+                if(buffer == null)
+                {
+                    buffer = takeBuffer();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+                if(!buffer.hasRemaining())
+                {
+                    queueBuffer();
+                }
+            }
+        }
+
+        /**
+         * Queue what's been written so far, without waiting for it to be
+         * written out.
+         */
+        public void flush()
+        {
+            if(buffer != null && buffer.position() > 0)
+            {
+                queueBuffer();
+            }
+        }
+
+        /**
+         * Queue the file to be closed, forcing it to disk first if
+         * configured to. Doesn't wait, see await().
+         */
+        public void close()
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+            flush();
+            writer.submit(new Runnable()
+            {
+                public void run()
+                {
+                    finish();
+                }
+            });
+        }
+
+        /**
+         * Run a task once the file's been written and closed, on the
+         * thread that wrote it.
+         */
+        public void then(Runnable task)
+        {
+            writer.submit(task);
+        }
+
+        /**
+         * Wait for the file to be written and closed.
+         *
+         * @throws IOException If writing it failed.
+         */
+        public void await() throws IOException
+        {
+            try
+            {
+                written.await();
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + file + " to be written");
+            }
+            if(failure != null)
+            {
+                throw failure;
+            }
+        }
+
+        private void queueBuffer()
+        {
+            final ByteBuffer full = buffer;
+            buffer = null;
+            full.flip();
+            writer.submit(new Runnable()
+            {
+                public void run()
+                {
+                    writeOut(full);
+                }
+            });
+        }
+
+        private void writeOut(ByteBuffer buf)
+        {
+            try
+            {
+                if(failure == null)
+                {
+                    if(channel == null)
+                    {
+                        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    }
+                    while(buf.hasRemaining())
+                    {
+                        channel.write(buf);
+                    }
+                }
+            }
+            catch(IOException ioe)
+            {
+                failure = ioe;
+            }
+            finally
+            {
+                giveBack(buf);
+            }
+        }
+
+        private void finish()
+        {
+            try
+            {
+                if(failure == null && channel != null && fsync)
+                {
+                    channel.force(true);
+                }
+            }
+            catch(IOException ioe)
+            {
+                failure = ioe;
+            }
+            finally
+            {
+                try
+                {
+                    if(channel != null)
+                    {
+                        channel.close();
+                    }
+                }
+                catch(IOException ioe)
+                {
+                    if(failure == null)
+                    {
+                        failure = ioe;
+                    }
+                }
+                written.countDown();
+            }
+        }
+    }
+}
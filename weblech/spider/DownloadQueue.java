@@ -27,70 +27,97 @@
 package weblech.spider;
 
 import java.util.*;
-import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
+/**
+ * The spider's frontier, partitioned by host. Each host has its own
+ * HostQueue with interesting, average and boring tiers, and hosts with
+ * URLs waiting sit in a heap ordered by the time their politeness delay
+ * next lets them be hit. Taking a URL pops the earliest eligible host,
+ * so threads spread over all ready hosts instead of queueing up behind
+ * one slow one. A host with the configured maximum number of downloads
+ * in progress leaves the heap until one of them finishes and is passed
+ * back to downloadFinished(). Only a bounded number of URLs per host
+ * and tier are kept in memory, the rest spill to segment files under
+ * the save root.
+ *
+ * Thread safety: The queue is thread-safe, no locking needed.
+ */
 public class DownloadQueue implements Serializable
 {
     private SpiderConfig config;
 
-    private List interestingURLsToDownload;
-    private List averageURLsToDownload;
-    private List boringURLsToDownload;
-    private Set urlsInQueue;
+    /** Host name to HostQueue. */
+    private Map hostQueues;
+    /** HostQueues with URLs waiting, earliest ready first. */
+    private transient DelayQueue readyHosts;
+    /** Number of queued URLs over all hosts. */
+    private transient AtomicInteger size;
 
     public DownloadQueue(SpiderConfig config)
     {
         this.config = config;
-        interestingURLsToDownload = new ArrayList();
-        averageURLsToDownload = new ArrayList();
-        boringURLsToDownload = new ArrayList();
-        urlsInQueue = new HashSet();
+        hostQueues = new ConcurrentHashMap();
+        readyHosts = new DelayQueue();
+        size = new AtomicInteger();
+        SpillingURLQueue.deleteSegments(new File(config.getSaveRootDirectory(), HostQueue.FRONTIER_DIRECTORY));
     }
 
+    /**
+     * Queue a URL. The queue doesn't check for duplicates, that's up to
+     * the caller.
+     */
     public void queueURL(URLToDownload url)
     {
-        URL u = url.getURL();
-        if(urlsInQueue.contains(u))
-        {
-            return;
-        }
+        CanonicalURL u = url.getURL();
 
+        int tier;
         if(config.isInteresting(u))
         {
-            if(config.isDepthFirstSearch())
-            {
-                interestingURLsToDownload.add(0, url);
-            }
-            else
-            {
-                interestingURLsToDownload.add(url);
-            }
+            tier = HostQueue.INTERESTING;
         }
         else if(config.isBoring(u))
         {
-            if(config.isDepthFirstSearch())
-            {
-                boringURLsToDownload.add(0, url);
-            }
-            else
-            {
-                boringURLsToDownload.add(url);
-            }
+            tier = HostQueue.BORING;
         }
         else
         {
-            if(config.isDepthFirstSearch())
+            tier = HostQueue.AVERAGE;
+        }
+
+        HostQueue hq = getHostQueue(u.getHost());
+        synchronized(hq)
+        {
+            hq.add(url, tier);
+            size.incrementAndGet();
+            if(!hq.isScheduled() && hq.canSchedule(config.getMaxFetchesPerHost()))
             {
-                averageURLsToDownload.add(0, url);
+                hq.setScheduled(true);
+                readyHosts.add(hq);
             }
-            else
+        }
+    }
+
+    private HostQueue getHostQueue(String host)
+    {
+        HostQueue hq = (HostQueue) hostQueues.get(host);
+        if(hq == null)
+        {
+            HostQueue newQueue = new HostQueue(host, config);
+            hq = (HostQueue) ((ConcurrentHashMap) hostQueues).putIfAbsent(host, newQueue);
+            if(hq == null)
             {
-                averageURLsToDownload.add(url);
+                hq = newQueue;
             }
         }
-
-        urlsInQueue.add(u);
+        return hq;
     }
 
     public void queueURLs(Collection urls)
@@ -102,42 +129,116 @@ public class DownloadQueue implements Serializable
         }
     }
 
+    /**
+     * Take the next URL to download from the earliest eligible host, or
+     * null if no host is currently allowed to be hit. Use size() to tell
+     * whether the queue is actually empty.
+     */
     public URLToDownload getNextInQueue()
     {
-        if(interestingURLsToDownload.size() > 0)
+        HostQueue hq = (HostQueue) readyHosts.poll();
+        if(hq == null)
         {
-            return returnURLFrom(interestingURLsToDownload);
+            return null;
         }
-        else if(averageURLsToDownload.size() > 0)
+
+        URLToDownload u2d;
+        int lost;
+        synchronized(hq)
         {
-            return returnURLFrom(averageURLsToDownload);
+            u2d = hq.poll();
+            lost = hq.takeLost();
+            if(u2d != null)
+            {
+                hq.setInFlight(hq.getInFlight() + 1);
+                // Only a request made counts against the host's rate
+                hq.takeToken(config.getHostDelay(), config.getHostBurst());
+            }
+            if(hq.canSchedule(config.getMaxFetchesPerHost()))
+            {
+                readyHosts.add(hq);
+            }
+            else
+            {
+                hq.setScheduled(false);
+            }
         }
-        else if(boringURLsToDownload.size() > 0)
+        if(lost > 0)
         {
-            return returnURLFrom(boringURLsToDownload);
+            size.addAndGet(-lost);
         }
-        else
+        if(u2d == null)
         {
             return null;
         }
+        size.decrementAndGet();
+        return u2d;
     }
 
-    private URLToDownload returnURLFrom(List urlList)
+    /**
+     * Tell the queue a URL taken from it has been dealt with, freeing up
+     * its host for another download.
+     */
+    public void downloadFinished(URLToDownload url)
     {
-        URLToDownload u2d = (URLToDownload) urlList.get(0);
-        urlList.remove(0);
-        urlsInQueue.remove(u2d.getURL());
-        return u2d;
+        HostQueue hq = (HostQueue) hostQueues.get(url.getURL().getHost());
+        if(hq == null)
+        {
+            return;
+        }
+        synchronized(hq)
+        {
+            hq.setInFlight(Math.max(0, hq.getInFlight() - 1));
+            if(!hq.isScheduled() && hq.canSchedule(config.getMaxFetchesPerHost()))
+            {
+                hq.setScheduled(true);
+                readyHosts.add(hq);
+            }
+        }
+    }
+
+    /**
+     * How long in milliseconds until the next host becomes eligible, 0 if
+     * one is eligible now, or -1 if no host is waiting (the queue is empty
+     * or every host with URLs queued is at its download limit).
+     */
+    public long getDelayUntilReady()
+    {
+        HostQueue hq = (HostQueue) readyHosts.peek();
+        if(hq == null)
+        {
+            return -1;
+        }
+        return Math.max(0, hq.getDelay(TimeUnit.MILLISECONDS));
     }
 
     public int size()
     {
-        return interestingURLsToDownload.size() + averageURLsToDownload.size() + boringURLsToDownload.size();
+        return size.get();
     }
 
     public String toString()
     {
-        return size() + " URLs";
+        return size() + " URLs, " + hostQueues.size() + " hosts";
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        readyHosts = new DelayQueue();
+        int total = 0;
+        for(Iterator i = hostQueues.values().iterator(); i.hasNext(); )
+        {
+            HostQueue hq = (HostQueue) i.next();
+            total += hq.size();
+            hq.setInFlight(0);
+            hq.setScheduled(hq.size() > 0);
+            if(hq.size() > 0)
+            {
+                readyHosts.add(hq);
+            }
+        }
+        size = new AtomicInteger(total);
     }
 
 } // End class DownloadQueue
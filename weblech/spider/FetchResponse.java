@@ -0,0 +1,68 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * The response to a Fetcher request: status and headers, and the body as
+ * a stream still to be read. Must be closed once done with.
+ */
+public interface FetchResponse
+{
+    int getStatusCode();
+
+    /** The status line, e.g. "HTTP/1.1 200 OK". */
+    String getStatusLine();
+
+    /** The first value of a header, or null. Names are case-insensitive. */
+    String getHeader(String name);
+
+    /** Header name to List of values. */
+    Map getHeaders();
+
+    String getContentType();
+
+    /** The Content-Length, or -1 if not known. */
+    long getContentLength();
+
+    InputStream getBody() throws IOException;
+
+    /**
+     * Write the body to a file as directly as the engine allows, instead
+     * of reading it from getBody(). Only one of the two may be used. How
+     * direct that is depends on the engine: HttpClientFetcher writes the
+     * client's own buffers, URLConnectionFetcher still reads a stream.
+     *
+     * @return Number of bytes written.
+     */
+    long transferBody(FileChannel out) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,241 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Saves each URL to its own file under the save root, named after it.
+ *
+ * If deduplicating, each distinct body is kept once, in a file named by
+ * its digest under .objects, and the files URLs are saved to are hard
+ * links to it. Where hard links can't be made, it's copied.
+ */
+public class FileStorage implements Storage
+{
+    /** Directory under the save root that bodies are kept in by digest. */
+    public static final String OBJECTS_DIRECTORY = ".objects";
+
+    private final SpiderConfig config;
+    /** Index of saved files, or null to look each one up on disk. */
+    private final Manifest manifest;
+    /** Counts of bodies stored and found already stored, or null if not deduplicating. */
+    private final Dedup dedup;
+    /** Held while checking for a body and storing it, so it's stored once. */
+    private final Object objectLock = new Object();
+    /** Directories known to exist, so they aren't made again for every file. */
+    private final Set directories = Collections.newSetFromMap(new ConcurrentHashMap());
+
+    /**
+     * @param manifest Index of saved files, or null.
+     */
+    public FileStorage(SpiderConfig config, Manifest manifest)
+    {
+        this(config, manifest, null);
+    }
+
+    /**
+     * @param dedup Counts to keep if bodies are to be stored once each,
+     *              or null.
+     */
+    public FileStorage(SpiderConfig config, Manifest manifest, Dedup dedup)
+    {
+        this.config = config;
+        this.manifest = manifest;
+        this.dedup = dedup;
+    }
+
+    public URLObject lookup(CanonicalURL url, String contentType)
+    {
+        if(manifest == null)
+        {
+            return new URLObject(url, contentType, config);
+        }
+        return manifest.lookup(url, contentType, config);
+    }
+
+    /**
+     * Made next to where the URL will be saved, so it can be renamed into
+     * place.
+     */
+    public File createTempFile(CanonicalURL url) throws IOException
+    {
+        File target = new File(URLObject.convertToFileName(url, config));
+        mkdirs(target.getParentFile());
+        return File.createTempFile(".weblech", ".part", target.getParentFile());
+    }
+
+    public void store(URLObject obj) throws IOException
+    {
+        if(dedup != null && (obj.isPending() || !obj.existsOnDisk()))
+        {
+            storeObject(obj);
+        }
+        else if(obj.isPending())
+        {
+            obj.commit();
+        }
+        else if(!obj.existsOnDisk())
+        {
+            if(!obj.writeToFile())
+            {
+                // Not saved, so nothing to remember it by
+                throw new IOException("Couldn't write " + obj.getSourceURL());
+            }
+        }
+        else
+        {
+            return;
+        }
+        if(manifest != null)
+        {
+            manifest.saved(obj);
+        }
+    }
+
+    /**
+     * Store a body by digest, unless it's there already, and link the
+     * URL's file to it.
+     */
+    private void storeObject(URLObject obj) throws IOException
+    {
+        File temp;
+        if(obj.isPending())
+        {
+            temp = obj.getFile();
+        }
+        else
+        {
+            byte[] content = obj.getContent();
+            if(content == null)
+            {
+                throw new IOException("Couldn't read body of " + obj.getSourceURL());
+            }
+            temp = createTempFile(obj.getSourceURL());
+            OutputStream out = new FileOutputStream(temp);
+            try
+            {
+                out.write(content);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+
+        try
+        {
+            obj.awaitWrite();
+            String digest = obj.getDigest();
+            if(digest == null)
+            {
+                digest = Dedup.digest(temp);
+            }
+            File object = objectFile(digest);
+            long size = temp.length();
+            File target = new File(URLObject.convertToFileName(obj.getSourceURL(), config));
+            // A parse thread may be reading the body from temp; moving it
+            // under the object's lock means it reads it before it goes or
+            // from target afterwards
+            synchronized(obj)
+            {
+                boolean duplicate;
+                synchronized(objectLock)
+                {
+                    duplicate = object.exists();
+                    if(!duplicate)
+                    {
+                        mkdirs(object.getParentFile());
+                        URLObject.moveIntoPlace(temp, object);
+                    }
+                }
+                if(duplicate)
+                {
+                    temp.delete();
+                    dedup.duplicate(size);
+                }
+                else
+                {
+                    dedup.stored(size);
+                }
+
+                // Link to it under the temporary name, then rename into place
+                link(object, temp);
+                URLObject.moveIntoPlace(temp, target);
+                obj.stored(target, 0, size);
+            }
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    private void mkdirs(File dir)
+    {
+        if(!directories.contains(dir))
+        {
+            dir.mkdirs();
+            directories.add(dir);
+        }
+    }
+
+    private File objectFile(String digest)
+    {
+        File dir = new File(new File(config.getSaveRootDirectory(), OBJECTS_DIRECTORY), digest.substring(0, 2));
+        return new File(dir, digest);
+    }
+
+    private static void link(File object, File link) throws IOException
+    {
+        try
+        {
+            Files.createLink(link.toPath(), object.toPath());
+            return;
+        }
+        catch(UnsupportedOperationException uoe)
+        {
+            // No hard links on this file system, copy it instead
+        }
+        catch(IOException ioe)
+        {
+            // Can't link to it from here, copy it instead
+        }
+        Files.copy(object.toPath(), link.toPath());
+    }
+
+    public void close()
+    {
+        if(manifest != null)
+        {
+            manifest.close();
+        }
+    }
+}
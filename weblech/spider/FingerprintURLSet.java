@@ -0,0 +1,145 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An exact SeenURLSet storing a 64-bit fingerprint per URL in an
+ * open-addressing table of longs, about 16 bytes a URL instead of a
+ * URL object and a HashMap entry. Two distinct URLs only collide with
+ * probability around n^2 / 2^65.
+ */
+public class FingerprintURLSet implements SeenURLSet
+{
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    /** Fingerprints, with 0 marking an empty slot. */
+    private long[] table;
+    private int size;
+
+    public FingerprintURLSet()
+    {
+        table = new long[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    public synchronized boolean checkAndAdd(CanonicalURL u)
+    {
+        return add(u.getFingerprint());
+    }
+
+    public synchronized boolean checkAndAdd(long fingerprint)
+    {
+        return add(fingerprint);
+    }
+
+    public synchronized List checkAndAdd(List urls)
+    {
+        ArrayList result = new ArrayList();
+        for(Iterator i = urls.iterator(); i.hasNext(); )
+        {
+            CanonicalURL u = (CanonicalURL) i.next();
+            if(add(u.getFingerprint()))
+            {
+                result.add(u);
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    public synchronized boolean contains(long fp)
+    {
+        if(fp == 0)
+        {
+            fp = 1;
+        }
+        int mask = table.length - 1;
+        int slot = (int) fp & mask;
+        while(table[slot] != 0)
+        {
+            if(table[slot] == fp)
+            {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private boolean add(long fp)
+    {
+        if(fp == 0)
+        {
+            fp = 1;
+        }
+        int mask = table.length - 1;
+        int slot = (int) fp & mask;
+        while(table[slot] != 0)
+        {
+            if(table[slot] == fp)
+            {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = fp;
+        size++;
+        // Keep the load factor under 2/3 so probe runs stay short
+        if(size * 3 > table.length * 2)
+        {
+            grow();
+        }
+        return true;
+    }
+
+    private void grow()
+    {
+        long[] old = table;
+        table = new long[old.length * 2];
+        int mask = table.length - 1;
+        for(int i = 0; i < old.length; i++)
+        {
+            long fp = old[i];
+            if(fp != 0)
+            {
+                int slot = (int) fp & mask;
+                while(table[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = fp;
+            }
+        }
+    }
+}
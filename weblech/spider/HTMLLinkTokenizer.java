@@ -0,0 +1,501 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds link-bearing attributes in HTML in a single pass. A state machine
+ * walks the page once, character by character, and reports every value
+ * of a configured (tag, attribute) pair to a LinkHandler. Tag and
+ * attribute names match case-insensitively, and values may be double
+ * quoted, single quoted or unquoted. Comments are skipped. Nothing is
+ * allocated except the Strings for reported values.
+ *
+ * Pages in an ASCII-compatible charset are tokenized as raw bytes, and
+ * only the captured attribute values are decoded.
+ *
+ * Not thread-safe; use one tokenizer per thread.
+ */
+public class HTMLLinkTokenizer
+{
+    /** Receives link values found by the tokenizer. */
+    public interface LinkHandler
+    {
+        /**
+         * @param tag  The tag name, as configured.
+         * @param attr The attribute name, as configured.
+         */
+        void link(String tag, String attr, String value);
+    }
+
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;
+    private static final int TAG_NAME = 2;
+    private static final int BEFORE_ATTR = 3;
+    private static final int ATTR_NAME = 4;
+    private static final int AFTER_ATTR_NAME = 5;
+    private static final int BEFORE_VALUE = 6;
+    private static final int VALUE_QUOTED = 7;
+    private static final int VALUE_UNQUOTED = 8;
+    private static final int SKIP_TAG = 9;
+    private static final int MARKUP_DECL = 10;
+    private static final int COMMENT = 11;
+
+    /** Tag names, lower case. */
+    private final String[] tags;
+    /** For each tag, the attribute names to report, lower case. */
+    private final String[][] attrs;
+
+    private int state;
+    private final StringBuffer name;
+    private final StringBuffer value;
+    /** The charset of the page when tokenizing bytes, otherwise null. */
+    private Charset charset;
+    private byte[] valueBytes;
+    private int valueLength;
+    /** Index of the current tag in tags, or -1. */
+    private int tag;
+    /** The attribute name being captured, or null. */
+    private String capture;
+    private char quote;
+    /** Dashes seen in a row, while looking for a comment's start or end. */
+    private int dashes;
+
+    /**
+     * @param linkAttributes Map of tag name to List of attribute names.
+     */
+    public HTMLLinkTokenizer(Map linkAttributes)
+    {
+        tags = new String[linkAttributes.size()];
+        attrs = new String[linkAttributes.size()][];
+        int t = 0;
+        for(Iterator i = linkAttributes.entrySet().iterator(); i.hasNext(); t++)
+        {
+            Map.Entry e = (Map.Entry) i.next();
+            tags[t] = ((String) e.getKey()).toLowerCase();
+            List attrList = (List) e.getValue();
+            attrs[t] = new String[attrList.size()];
+            for(int a = 0; a < attrs[t].length; a++)
+            {
+                attrs[t][a] = ((String) attrList.get(a)).toLowerCase();
+            }
+        }
+        name = new StringBuffer();
+        value = new StringBuffer();
+        valueBytes = new byte[256];
+        reset();
+    }
+
+    /**
+     * Get ready for a new document.
+     */
+    public void reset()
+    {
+        state = TEXT;
+        name.setLength(0);
+        value.setLength(0);
+        valueLength = 0;
+        tag = -1;
+        capture = null;
+        dashes = 0;
+    }
+
+    /**
+     * Tokenize a whole document.
+     */
+    public void tokenize(CharSequence input, LinkHandler handler)
+    {
+        reset();
+        charset = null;
+        for(int i = 0; i < input.length(); i++)
+        {
+            next(input.charAt(i), handler);
+        }
+    }
+
+    /**
+     * Tokenize a whole document without decoding it. The charset must be
+     * ASCII-compatible (see CharsetSniffer.isAsciiCompatible()).
+     *
+     * @param charset Used to decode captured attribute values.
+     */
+    public void tokenize(byte[] input, Charset charset, LinkHandler handler)
+    {
+        begin(charset);
+        int bom = CharsetSniffer.bomLength(input);
+        feed(input, bom, input.length - bom, handler);
+    }
+
+    /**
+     * Tokenize a whole document in a buffer, such as a memory-mapped file,
+     * without decoding it. The buffer's position isn't changed.
+     */
+    public void tokenize(ByteBuffer input, Charset charset, LinkHandler handler)
+    {
+        begin(charset);
+        int start = input.position();
+        byte[] head = new byte[Math.min(3, input.remaining())];
+        for(int i = 0; i < head.length; i++)
+        {
+            head[i] = input.get(start + i);
+        }
+        for(int i = start + CharsetSniffer.bomLength(head); i < input.limit(); i++)
+        {
+            next((char) (input.get(i) & 0xff), handler);
+        }
+    }
+
+    /**
+     * Get ready to be fed a document a piece at a time, as it's
+     * downloaded. The charset must be ASCII-compatible.
+     *
+     * @param charset Used to decode captured attribute values.
+     */
+    public void begin(Charset charset)
+    {
+        reset();
+        this.charset = charset;
+    }
+
+    /**
+     * Tokenize the next piece of a document started with begin(). Tags
+     * may be split between pieces.
+     */
+    public void feed(byte[] input, int offset, int length, LinkHandler handler)
+    {
+        for(int i = offset; i < offset + length; i++)
+        {
+            next((char) (input[i] & 0xff), handler);
+        }
+    }
+
+    private void next(char c, LinkHandler handler)
+    {
+        switch(state)
+        {
+            case TEXT:
+                if(c == '<')
+                {
+                    state = TAG_OPEN;
+                }
+                break;
+
+            case TAG_OPEN:
+                if(isLetter(c))
+                {
+                    name.setLength(0);
+                    name.append(c);
+                    state = TAG_NAME;
+                }
+                else if(c == '!')
+                {
+                    dashes = 0;
+                    state = MARKUP_DECL;
+                }
+                else if(c == '<')
+                {
+                    state = TAG_OPEN;
+                }
+                else if(c == '/' || c == '?')
+                {
+                    // End tag or processing instruction
+                    state = SKIP_TAG;
+                }
+                else
+                {
+                    // A stray '<' in the text, as in "1 < 2"
+                    state = TEXT;
+                }
+                break;
+
+            case TAG_NAME:
+                if(c == '>')
+                {
+                    state = TEXT;
+                }
+                else if(isSpace(c) || c == '/')
+                {
+                    tag = findTag();
+                    state = tag < 0 ? SKIP_TAG : BEFORE_ATTR;
+                }
+                else
+                {
+                    name.append(c);
+                }
+                break;
+
+            case BEFORE_ATTR:
+                if(c == '>')
+                {
+                    state = TEXT;
+                }
+                else if(!isSpace(c) && c != '/')
+                {
+                    name.setLength(0);
+                    name.append(c);
+                    state = ATTR_NAME;
+                }
+                break;
+
+            case ATTR_NAME:
+                if(c == '=')
+                {
+                    startValue();
+                }
+                else if(c == '>')
+                {
+                    state = TEXT;
+                }
+                else if(isSpace(c))
+                {
+                    state = AFTER_ATTR_NAME;
+                }
+                else if(c == '/')
+                {
+                    state = BEFORE_ATTR;
+                }
+                else
+                {
+                    name.append(c);
+                }
+                break;
+
+            case AFTER_ATTR_NAME:
+                if(c == '=')
+                {
+                    startValue();
+                }
+                else if(c == '>')
+                {
+                    state = TEXT;
+                }
+                else if(!isSpace(c))
+                {
+                    // Previous attribute had no value
+                    name.setLength(0);
+                    name.append(c);
+                    state = ATTR_NAME;
+                }
+                break;
+
+            case BEFORE_VALUE:
+                if(c == '"' || c == '\'')
+                {
+                    quote = c;
+                    state = VALUE_QUOTED;
+                }
+                else if(c == '>')
+                {
+                    state = TEXT;
+                }
+                else if(!isSpace(c))
+                {
+                    if(capture != null)
+                    {
+                        appendValue(c);
+                    }
+                    state = VALUE_UNQUOTED;
+                }
+                break;
+
+            case VALUE_QUOTED:
+                if(c == quote)
+                {
+                    endValue(handler);
+                    state = BEFORE_ATTR;
+                }
+                else if(capture != null)
+                {
+                    appendValue(c);
+                }
+                break;
+
+            case VALUE_UNQUOTED:
+                if(isSpace(c))
+                {
+                    endValue(handler);
+                    state = BEFORE_ATTR;
+                }
+                else if(c == '>')
+                {
+                    endValue(handler);
+                    state = TEXT;
+                }
+                else if(capture != null)
+                {
+                    appendValue(c);
+                }
+                break;
+
+            case SKIP_TAG:
+                if(c == '>')
+                {
+                    state = TEXT;
+                }
+                break;
+
+            case MARKUP_DECL:
+                // "<!--" starts a comment, anything else (DOCTYPE etc.)
+                // is skipped like a tag
+                if(c == '-' && dashes == 0)
+                {
+                    dashes = 1;
+                }
+                else if(c == '-' && dashes == 1)
+                {
+                    dashes = 0;
+                    state = COMMENT;
+                }
+                else
+                {
+                    state = c == '>' ? TEXT : SKIP_TAG;
+                }
+                break;
+
+            case COMMENT:
+                if(c == '-')
+                {
+                    dashes++;
+                }
+                else
+                {
+                    if(c == '>' && dashes >= 2)
+                    {
+                        state = TEXT;
+                    }
+                    dashes = 0;
+                }
+                break;
+        }
+    }
+
+    private void startValue()
+    {
+        capture = findAttr();
+        value.setLength(0);
+        valueLength = 0;
+        state = BEFORE_VALUE;
+    }
+
+    private void endValue(LinkHandler handler)
+    {
+        if(capture != null)
+        {
+            String v = charset == null ? value.toString() : new String(valueBytes, 0, valueLength, charset);
+            v = v.trim();
+            if(v.length() > 0)
+            {
+                handler.link(tags[tag], capture, v);
+            }
+            capture = null;
+        }
+    }
+
+    private void appendValue(char c)
+    {
+        if(charset == null)
+        {
+            value.append(c);
+            return;
+        }
+        if(valueLength == valueBytes.length)
+        {
+            byte[] bigger = new byte[valueBytes.length * 2];
+            System.arraycopy(valueBytes, 0, bigger, 0, valueLength);
+            valueBytes = bigger;
+        }
+        valueBytes[valueLength++] = (byte) c;
+    }
+
+    /**
+     * The index of the tag in name, or -1 if it's not one we want.
+     */
+    private int findTag()
+    {
+        for(int t = 0; t < tags.length; t++)
+        {
+            if(nameIs(tags[t]))
+            {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The attribute in name if it's one we want for the current tag, or
+     * null.
+     */
+    private String findAttr()
+    {
+        if(tag < 0)
+        {
+            return null;
+        }
+        for(int a = 0; a < attrs[tag].length; a++)
+        {
+            if(nameIs(attrs[tag][a]))
+            {
+                return attrs[tag][a];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether name matches a lower case string, ignoring case.
+     */
+    private boolean nameIs(String s)
+    {
+        if(name.length() != s.length())
+        {
+            return false;
+        }
+        for(int i = 0; i < s.length(); i++)
+        {
+            if(Character.toLowerCase(name.charAt(i)) != s.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLetter(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isSpace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
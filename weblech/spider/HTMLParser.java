@@ -29,8 +29,9 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
-import java.net.URL;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.FileWriter;
@@ -41,39 +42,86 @@ import weblech.ui.LechLogger;
 public class HTMLParser
 {
 	private SpiderConfig config;
+    /** Where mailto: links go, or null to append them to the log directly. */
+    private final MailtoLog mailtoLog;
+    /** Links resolved on earlier pages, or null. */
+    private final LinkResolver.Cache resolvedLinks;
 
 	public HTMLParser(SpiderConfig config)
+    {
+        this(config, null);
+    }
+
+    public HTMLParser(SpiderConfig config, MailtoLog mailtoLog)
     {
         this.config = config;
+        this.mailtoLog = mailtoLog;
+        this.resolvedLinks = config.getResolveCacheSize() > 0 ? new LinkResolver.Cache(config.getResolveCacheSize()) : null;
     }
 
-    public List parseLinksInDocument(URL sourceURL, String textContent)
+    public List parseLinksInDocument(CanonicalURL sourceURL, String textContent)
     {
         return parseAsHTML(sourceURL, textContent);
     }
 
-    private List parseAsHTML(URL sourceURL, String textContent)
+    /**
+     * Parse a page without decoding it all to a String first. The charset
+     * is sniffed from the BOM, the content type or a &lt;meta&gt; tag, and
+     * only link values are decoded.
+     *
+     * @param contentType The Content-Type header, or null.
+     */
+    public List parseLinksInDocument(CanonicalURL sourceURL, byte[] content, String contentType)
+    {
+        return parseLinksInDocument(sourceURL, ByteBuffer.wrap(content), contentType);
+    }
+
+    /**
+     * Parse a page in a buffer, such as a memory-mapped file, the same way.
+     */
+    public List parseLinksInDocument(CanonicalURL sourceURL, ByteBuffer content, String contentType)
+    {
+        Charset charset = CharsetSniffer.detect(content, contentType);
+        LechLogger.debug("Parsing " + sourceURL + " as " + charset);
+        if(!CharsetSniffer.isAsciiCompatible(charset))
+        {
+            // UTF-16 and the like: markup isn't ASCII bytes, transcode first
+            return parseAsHTML(sourceURL, charset.decode(content.duplicate()));
+        }
+        List newURLs = new ArrayList();
+        HTMLLinkTokenizer tokenizer = new HTMLLinkTokenizer(config.getLinkAttributes());
+        tokenizer.tokenize(content, charset, new LinkCollector(sourceURL, newURLs));
+        LechLogger.debug("Returning " + newURLs.size() + " urls extracted from page");
+        return newURLs;
+    }
+
+    /**
+     * Start finding the links in a page while it downloads. Write the body
+     * to the stream returned, and close it at the end.
+     *
+     * @param contentType The Content-Type header, or null.
+     */
+    public LinkStream openLinkStream(CanonicalURL sourceURL, String contentType, LinkStream.Listener listener)
+    {
+        List found = new ArrayList();
+        HTMLLinkTokenizer tokenizer = new HTMLLinkTokenizer(config.getLinkAttributes());
+        return new LinkStream(tokenizer, new LinkCollector(sourceURL, found), found, contentType, listener);
+    }
+
+    private List parseAsHTML(CanonicalURL sourceURL, CharSequence textContent)
     {
         LechLogger.debug("parseAsHTML()");
         ArrayList newURLs = new ArrayList();
-        HashSet newURLSet = new HashSet();
 
 		/* note from coleman:
 		 * I had to add a few tags into this, namely the link and embeds. weblech should download flash
 		 * movies, mpegs, avis, and anything else that it finds on the page. even stylesheets :)
 		 */
-        extractAttributesFromTags("img", "src", sourceURL, newURLs, newURLSet, textContent);
-        extractAttributesFromTags("a", "href", sourceURL, newURLs, newURLSet, textContent);
-        extractAttributesFromTags("body", "background", sourceURL, newURLs, newURLSet, textContent);
-        extractAttributesFromTags("frame", "src", sourceURL, newURLs, newURLSet, textContent);
-		extractAttributesFromTags("link", "href", sourceURL, newURLs, newURLSet, textContent);
-		extractAttributesFromTags("embed", "src", sourceURL, newURLs, newURLSet, textContent);
-        extractAttributesFromTags("IMG", "SRC", sourceURL, newURLs, newURLSet, textContent);
-        extractAttributesFromTags("A", "HREF", sourceURL, newURLs, newURLSet, textContent);
-        extractAttributesFromTags("BODY", "BACKGROUND", sourceURL, newURLs, newURLSet, textContent);
-        extractAttributesFromTags("FRAME", "SRC", sourceURL, newURLs, newURLSet, textContent);
-		extractAttributesFromTags("LINK", "HREF", sourceURL, newURLs, newURLSet, textContent);
-		extractAttributesFromTags("EMBED", "SRC", sourceURL, newURLs, newURLSet, textContent);
+        // The tags and attributes to follow come from the linkAttributes
+        // config, and are all found in one pass over the page, whatever
+        // their case or quoting
+        HTMLLinkTokenizer tokenizer = new HTMLLinkTokenizer(config.getLinkAttributes());
+        tokenizer.tokenize(textContent, new LinkCollector(sourceURL, newURLs));
 
         if(newURLs.size() == 0)
         {
@@ -83,73 +131,54 @@ public class HTMLParser
         return newURLs;
     }
 
-    private void extractAttributesFromTags(String tag, String attr, URL sourceURL, List newURLs, Set newURLSet, String input)
+    /**
+     * Resolves the links found on one page, dropping duplicates and
+     * logging mailto: links.
+     */
+    private class LinkCollector implements HTMLLinkTokenizer.LinkHandler
     {
-        LechLogger.debug("extractAttributesFromTags(" + tag + ", " + attr + ", ...)");
+        private final LinkResolver resolver;
+        private final List newURLs;
+        private final Set newURLSet;
+
+        LinkCollector(CanonicalURL sourceURL, List newURLs)
+        {
+            this.resolver = new LinkResolver(sourceURL, resolvedLinks);
+            this.newURLs = newURLs;
+            this.newURLSet = new HashSet();
+        }
 
-        int startPos = 0;
-        String startTag = "<" + tag + " ";
-        String attrStr = attr + "=\"";
-        while(true)
+        public void link(String tag, String attr, String urlStr)
         {
-            int tagPos = input.indexOf(startTag, startPos);
-            if(tagPos < 0)
+            if(urlStr.indexOf('#') != -1)
             {
-                return;
+                urlStr = urlStr.substring(0, urlStr.indexOf('#'));
             }
-            int attrPos = input.indexOf(attrStr, tagPos + 1);
-            if(attrPos < 0)
+            //LechLogger.debug("Found possible URL string: " + URL);
+
+            if(isMailTo(urlStr))
             {
-                startPos = tagPos + 1;
-                continue;
+                logMailURL(urlStr);
             }
-            int nextClosePos = input.indexOf(">", tagPos + 1);
-            if(attrPos < nextClosePos)
+            else
             {
-                // Ooh, found one
-                int closeQuotePos = input.indexOf("\"", attrPos + attrStr.length() + 1);
-                if(closeQuotePos > 0)
+                try
                 {
-                    String urlStr = input.substring(attrPos + attrStr.length(), closeQuotePos);
-                    if(urlStr.indexOf('#') != -1)
-                    {
-                        urlStr = urlStr.substring(0, urlStr.indexOf('#'));
-                    }
-                    //LechLogger.debug("Found possible URL string: " + URL);
-
-                    if(isMailTo(urlStr))
+                    CanonicalURL u = resolver.resolve(urlStr);
+                    if(newURLSet.contains(u))
                     {
-                        logMailURL(urlStr);
+                        //LechLogger.debug("Already found URL on page: " + u);
                     }
                     else
                     {
-                        try
-                        {
-
-                            URL u = new URL(sourceURL, urlStr);
-                            if(newURLSet.contains(u))
-                            {
-                                //LechLogger.debug("Already found URL on page: " + u);
-                            }
-                            else
-                            {
-                                newURLs.add(u);
-                                newURLSet.add(u);
-                                //LechLogger.debug("Found new URL on page: " + u);
-                            }
-                        }
-                        catch(MalformedURLException murle)
-                        {
-                        }
+                        newURLs.add(u);
+                        newURLSet.add(u);
+                        //LechLogger.debug("Found new URL on page: " + u);
                     }
                 }
-                startPos = tagPos + 1;
-                continue;
-            }
-            else
-            {
-                startPos = tagPos + 1;
-                continue;
+                catch(MalformedURLException murle)
+                {
+                }
             }
         }
     }
@@ -158,6 +187,12 @@ public class HTMLParser
     {
         LechLogger.debug("logMailURL()");
 
+        if(mailtoLog != null)
+        {
+            mailtoLog.record(url);
+            return;
+        }
+
         try
         {
             FileWriter appendedFile = new FileWriter(config.getMailtoLogFile().toString(), true);
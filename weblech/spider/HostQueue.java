@@ -0,0 +1,206 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The URLs queued for a single host, with a token bucket limiting how
+ * often the host may be hit. Each host keeps its own interesting,
+ * average and boring tiers, which spill to disk past the configured
+ * per-host frontier memory limit.
+ *
+ * Thread safety: To access a HostQueue, first synchronize on it. The
+ * ready time only changes while the queue is not scheduled in the
+ * download queue's ready-host heap.
+ */
+public class HostQueue implements Delayed, Serializable
+{
+    public static final int INTERESTING = 0;
+    public static final int AVERAGE = 1;
+    public static final int BORING = 2;
+
+    /** Directory under the save root that frontier segments spill to. */
+    public static final String FRONTIER_DIRECTORY = ".frontier";
+
+    private final String host;
+    private final SpillingURLQueue[] tiers;
+    private int size;
+    /** URLs the tiers have lost since the last takeLost(). */
+    private int lost;
+
+    /** Whether this host is in the ready-host heap or being served. */
+    private boolean scheduled;
+    /** Number of downloads from this host in progress. */
+    private int inFlight;
+    /** Time at which this host may next be downloaded from. */
+    private long readyAt;
+    /** Tokens left in the host's bucket. */
+    private double tokens;
+    /** Time the bucket was last refilled. */
+    private long lastRefill;
+
+    public HostQueue(String host, SpiderConfig config)
+    {
+        this.host = host;
+        File spillDirectory = new File(config.getSaveRootDirectory(), FRONTIER_DIRECTORY);
+        tiers = new SpillingURLQueue[3];
+        for(int i = 0; i < tiers.length; i++)
+        {
+            tiers[i] = new SpillingURLQueue(config.isDepthFirstSearch(), config.getHostFrontierMemoryLimit(), spillDirectory);
+        }
+        size = 0;
+        lost = 0;
+        scheduled = false;
+        inFlight = 0;
+        readyAt = 0;
+        tokens = config.getHostBurst();
+        lastRefill = System.currentTimeMillis();
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public void add(URLToDownload url, int tier)
+    {
+        tiers[tier].add(url);
+        size++;
+    }
+
+    /**
+     * Take the next URL from the best non-empty tier, or null if the host
+     * has nothing queued. URLs lost from unreadable segments on the way
+     * come off the size and are counted for takeLost().
+     */
+    public URLToDownload poll()
+    {
+        for(int i = 0; i < tiers.length; i++)
+        {
+            URLToDownload u2d = tiers[i].poll();
+            int n = tiers[i].takeLost();
+            size -= n;
+            lost += n;
+            if(u2d != null)
+            {
+                size--;
+                return u2d;
+            }
+        }
+        return null;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * The number of URLs lost by poll() since the last call.
+     */
+    public int takeLost()
+    {
+        int n = lost;
+        lost = 0;
+        return n;
+    }
+
+    public boolean isScheduled()
+    {
+        return scheduled;
+    }
+
+    public void setScheduled(boolean scheduled)
+    {
+        this.scheduled = scheduled;
+    }
+
+    public int getInFlight()
+    {
+        return inFlight;
+    }
+
+    public void setInFlight(int inFlight)
+    {
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Whether the host may be scheduled given the per-host download limit,
+     * 0 meaning no limit.
+     */
+    public boolean canSchedule(int maxInFlight)
+    {
+        return size > 0 && (maxInFlight == 0 || inFlight < maxInFlight);
+    }
+
+    /**
+     * Spend a token for a download starting now, and work out when the
+     * host will next have a token available. A delay of 0 disables the
+     * bucket altogether.
+     */
+    public void takeToken(long delay, int burst)
+    {
+        long now = System.currentTimeMillis();
+        if(delay <= 0)
+        {
+            readyAt = now;
+            return;
+        }
+
+        tokens = Math.min(burst, tokens + (double) (now - lastRefill) / delay);
+        lastRefill = now;
+        tokens -= 1.0;
+        if(tokens >= 1.0)
+        {
+            readyAt = now;
+        }
+        else
+        {
+            readyAt = now + (long) Math.ceil((1.0 - tokens) * delay);
+        }
+    }
+
+    public long getDelay(TimeUnit unit)
+    {
+        return unit.convert(readyAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo(Delayed o)
+    {
+        long other = ((HostQueue) o).readyAt;
+        return readyAt < other ? -1 : (readyAt > other ? 1 : 0);
+    }
+
+    public String toString()
+    {
+        return host + ": " + size + " URLs";
+    }
+}
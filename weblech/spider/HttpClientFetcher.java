@@ -0,0 +1,387 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
+
+import weblech.ui.LechLogger;
+
+/**
+ * A non-blocking Fetcher on java.net.http.HttpClient. One client is shared
+ * by every thread using the Fetcher, so connections are reused per host
+ * and, where the server speaks HTTP/2, concurrent requests to a host are
+ * multiplexed over a single connection. The body is streamed as it
+ * arrives, either as an InputStream or straight from the client's
+ * buffers to a file. Bodies that aren't wanted are drained, so their
+ * connections stay open, and the ConnectionPool bounds how many are in
+ * use per host.
+ */
+public class HttpClientFetcher implements Fetcher
+{
+    private final HttpClient client;
+    private final ConnectionPool pool;
+
+    public HttpClientFetcher(SpiderConfig config)
+    {
+        this(config, new ConnectionPool(config));
+    }
+
+    public HttpClientFetcher(SpiderConfig config, ConnectionPool pool)
+    {
+        // Made first, it sets the client's keep-alive timeout
+        this.pool = pool;
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .authenticator(new DumbAuthenticator(config.getBasicAuthUser(), config.getBasicAuthPassword()))
+            .build();
+    }
+
+    public CompletableFuture fetch(URLToDownload url, Map requestHeaders)
+    {
+        HttpRequest.Builder builder;
+        try
+        {
+            builder = HttpRequest.newBuilder(toURI(url.getURL())).GET();
+            for(Iterator i = requestHeaders.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry e = (Map.Entry) i.next();
+                builder.setHeader((String) e.getKey(), (String) e.getValue());
+            }
+        }
+        catch(URISyntaxException use)
+        {
+            return failed(new IOException("Invalid URI " + url.getURL() + ": " + use.getMessage()));
+        }
+        catch(IllegalArgumentException iae)
+        {
+            // Not http or https, no host, or a header the client won't send
+            return failed(new IOException("Can't request " + url.getURL() + ": " + iae.getMessage()));
+        }
+
+        final String key = ConnectionPool.key(url.getURL());
+        try
+        {
+            pool.acquire(key);
+        }
+        catch(IOException ioe)
+        {
+            return failed(ioe);
+        }
+
+        LechLogger.debug("Sending request for " + url.getURL());
+        // The body's subscribed to once we know what's wanted of it
+        CompletableFuture sent = client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofPublisher());
+        final CompletableFuture result = new CompletableFuture();
+        sent.whenComplete(new BiConsumer()
+        {
+            public void accept(Object response, Object failure)
+            {
+                if(failure != null)
+                {
+                    pool.release(key);
+                    result.completeExceptionally((Throwable) failure);
+                    return;
+                }
+                Response r = new Response((HttpResponse) response, key);
+                if(!result.complete(r))
+                {
+                    // Cancelled while waiting, nobody will close it
+                    r.close();
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The URI to request a URL by. Links in the wild often aren't strictly
+     * valid URIs, so if the URL's text won't parse it's rebuilt from its
+     * parts, which quotes any illegal characters.
+     */
+    private static URI toURI(CanonicalURL u) throws URISyntaxException
+    {
+        try
+        {
+            return new URI(u.toExternalForm());
+        }
+        catch(URISyntaxException use)
+        {
+            URL url = u.toURL();
+            return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(), url.getQuery(), url.getRef());
+        }
+    }
+
+    private static CompletableFuture failed(IOException ioe)
+    {
+        CompletableFuture failed = new CompletableFuture();
+        failed.completeExceptionally(ioe);
+        return failed;
+    }
+
+    private class Response implements FetchResponse
+    {
+        private final HttpResponse response;
+        private final String key;
+        /** The body as a stream, once asked for. */
+        private InputStream body;
+        /** Whether the body's been subscribed to. */
+        private boolean subscribed;
+        private boolean closed;
+
+        Response(HttpResponse response, String key)
+        {
+            this.response = response;
+            this.key = key;
+        }
+
+        public int getStatusCode()
+        {
+            return response.statusCode();
+        }
+
+        public String getStatusLine()
+        {
+            String version = response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2" : "HTTP/1.1";
+            return version + " " + response.statusCode();
+        }
+
+        public String getHeader(String name)
+        {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        public Map getHeaders()
+        {
+            return response.headers().map();
+        }
+
+        public String getContentType()
+        {
+            return getHeader("Content-Type");
+        }
+
+        public long getContentLength()
+        {
+            return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        }
+
+        public synchronized InputStream getBody()
+        {
+            if(body == null)
+            {
+                HttpResponse.BodySubscriber stream = HttpResponse.BodySubscribers.ofInputStream();
+                subscribe(stream);
+                body = (InputStream) stream.getBody().toCompletableFuture().join();
+            }
+            return body;
+        }
+
+        /**
+         * Write the buffers the client reads the body into straight to the
+         * file, a batch at a time, without copying them to a stream.
+         */
+        public long transferBody(final FileChannel out) throws IOException
+        {
+            final CompletableFuture done = new CompletableFuture();
+            subscribe(new Flow.Subscriber()
+            {
+                private Flow.Subscription subscription;
+                private long written;
+
+                public void onSubscribe(Flow.Subscription s)
+                {
+                    subscription = s;
+                    s.request(1);
+                }
+
+                public void onNext(Object item)
+                {
+                    if(done.isDone())
+                    {
+                        return;
+                    }
+                    List list = (List) item;
+                    ByteBuffer[] buffers = (ByteBuffer[]) list.toArray(new ByteBuffer[list.size()]);
+                    long size = 0;
+                    for(int i = 0; i < buffers.length; i++)
+                    {
+                        size += buffers[i].remaining();
+                    }
+                    try
+                    {
+                        long remaining = size;
+                        while(remaining > 0)
+                        {
+                            remaining -= out.write(buffers);
+                        }
+                    }
+                    catch(IOException ioe)
+                    {
+                        subscription.cancel();
+                        done.completeExceptionally(ioe);
+                        return;
+                    }
+                    written += size;
+                    subscription.request(1);
+                }
+
+                public void onError(Throwable t)
+                {
+                    done.completeExceptionally(t);
+                }
+
+                public void onComplete()
+                {
+                    done.complete(Long.valueOf(written));
+                }
+            });
+            try
+            {
+                return ((Long) done.get()).longValue();
+            }
+            catch(ExecutionException ee)
+            {
+                Throwable cause = ee.getCause();
+                if(cause instanceof IOException)
+                {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Transfer failed: " + cause);
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted transferring body");
+            }
+        }
+
+        private synchronized void subscribe(Flow.Subscriber subscriber)
+        {
+            if(subscribed)
+            {
+                throw new IllegalStateException("Body already read");
+            }
+            subscribed = true;
+            ((Flow.Publisher) response.body()).subscribe(subscriber);
+        }
+
+        /**
+         * Read what's left of the body, so the connection can be reused.
+         */
+        public void close()
+        {
+            synchronized(this)
+            {
+                if(closed)
+                {
+                    return;
+                }
+                closed = true;
+                if(!subscribed)
+                {
+                    // Nobody wants it, drain it in the background
+                    subscribe(new Drain());
+                    return;
+                }
+            }
+            if(body != null)
+            {
+                pool.drain(body);
+            }
+            pool.release(key);
+        }
+
+        /**
+         * Reads and throws away an unwanted body, unless it's too big to
+         * be worth it, then releases the connection.
+         */
+        private class Drain implements Flow.Subscriber
+        {
+            private Flow.Subscription subscription;
+            private long total;
+
+            public void onSubscribe(Flow.Subscription s)
+            {
+                subscription = s;
+                s.request(Long.MAX_VALUE);
+            }
+
+            public void onNext(Object item)
+            {
+                if(total > ConnectionPool.DRAIN_LIMIT)
+                {
+                    return;
+                }
+                for(Iterator i = ((List) item).iterator(); i.hasNext(); )
+                {
+                    total += ((ByteBuffer) i.next()).remaining();
+                }
+                if(total > ConnectionPool.DRAIN_LIMIT)
+                {
+                    subscription.cancel();
+                    pool.drained(total, false);
+                    pool.release(key);
+                }
+            }
+
+            public void onError(Throwable t)
+            {
+                if(total <= ConnectionPool.DRAIN_LIMIT)
+                {
+                    pool.drained(total, false);
+                    pool.release(key);
+                }
+            }
+
+            public void onComplete()
+            {
+                if(total <= ConnectionPool.DRAIN_LIMIT)
+                {
+                    pool.drained(total, true);
+                    pool.release(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.net.MalformedURLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves the links found on one page against the page's URL.
+ *
+ * The page's origin (scheme, host and port) and directory are worked out
+ * once. Plain relative paths and absolute paths are then resolved by
+ * joining strings, without parsing anything; only links with "." or ".."
+ * segments, other schemes and so on go through java.net.URL. Results are
+ * also kept in a Cache shared between pages, keyed on the directory and
+ * the link, so the navigation links repeated on every page of a site are
+ * found with one hash lookup.
+ */
+public class LinkResolver
+{
+    /**
+     * A bounded, least recently used map of resolution keys to
+     * CanonicalURLs. Thread-safe.
+     */
+    public static class Cache
+    {
+        private final Map map;
+
+        public Cache(final int maxSize)
+        {
+            map = new LinkedHashMap(16, 0.75f, true)
+            {
+                protected boolean removeEldestEntry(Map.Entry eldest)
+                {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        public synchronized CanonicalURL get(String key)
+        {
+            return (CanonicalURL) map.get(key);
+        }
+
+        public synchronized void put(String key, CanonicalURL u)
+        {
+            map.put(key, u);
+        }
+
+        public synchronized int size()
+        {
+            return map.size();
+        }
+    }
+
+    private final CanonicalURL base;
+    /** The shared cache, or null. */
+    private final Cache cache;
+    /** e.g. "http://host:8080", or null if the base isn't hierarchical. */
+    private final String origin;
+    /** e.g. "http://host:8080/dir/". */
+    private final String directory;
+
+    public LinkResolver(CanonicalURL base, Cache cache)
+    {
+        this.base = base;
+        this.cache = cache;
+
+        String s = base.toExternalForm();
+        int authority = s.indexOf("://");
+        int pathStart = authority < 0 ? -1 : s.indexOf('/', authority + 3);
+        if(pathStart < 0)
+        {
+            origin = null;
+            directory = null;
+        }
+        else
+        {
+            origin = s.substring(0, pathStart);
+            int query = s.indexOf('?', pathStart);
+            int lastSlash = s.lastIndexOf('/', query < 0 ? s.length() - 1 : query);
+            directory = s.substring(0, lastSlash + 1);
+        }
+    }
+
+    /**
+     * Resolve a link, which must not have a fragment, against the page.
+     */
+    public CanonicalURL resolve(String spec) throws MalformedURLException
+    {
+        if(origin == null || spec.length() == 0 || spec.charAt(0) == '?')
+        {
+            // Depends on more than the page's directory
+            return base.resolve(spec);
+        }
+
+        String key;
+        boolean simple;
+        int colon = schemeEnd(spec);
+        if(colon >= 0)
+        {
+            if(!spec.startsWith("//", colon + 1))
+            {
+                // Such as "http:foo", which can still be relative to the
+                // page, so isn't the same URL wherever it's found
+                return base.resolve(spec);
+            }
+            key = spec;
+            simple = false;
+        }
+        else if(spec.startsWith("//"))
+        {
+            key = origin.substring(0, origin.indexOf(':') + 1) + spec;
+            simple = false;
+        }
+        else if(spec.charAt(0) == '/')
+        {
+            key = origin + spec;
+            simple = isSimplePath(spec);
+        }
+        else
+        {
+            key = directory + spec;
+            simple = isSimplePath(spec);
+        }
+
+        CanonicalURL u = cache == null ? null : cache.get(key);
+        if(u == null)
+        {
+            // A simple link joined to the base is already in normal form
+            u = simple ? new CanonicalURL(key, base.getHost()) : base.resolve(spec);
+            if(cache != null)
+            {
+                cache.put(key, u);
+            }
+        }
+        return u;
+    }
+
+    /**
+     * Where the colon ending a link's scheme, such as "http:", is, or -1
+     * if it doesn't start with one.
+     */
+    private static int schemeEnd(String spec)
+    {
+        for(int i = 0; i < spec.length(); i++)
+        {
+            char c = spec.charAt(i);
+            if(c == ':')
+            {
+                return i > 0 ? i : -1;
+            }
+            boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+            if(!letter && (i == 0 || !((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.')))
+            {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether joining a link to a base by hand gives the same result as
+     * java.net.URL: a path of plain characters with no "." or ".."
+     * segments, and any query.
+     */
+    private static boolean isSimplePath(String spec)
+    {
+        int query = spec.indexOf('?');
+        int end = query < 0 ? spec.length() : query;
+        if(spec.startsWith(".") || spec.lastIndexOf("/.", end) >= 0)
+        {
+            return false;
+        }
+        for(int i = 0; i < spec.length(); i++)
+        {
+            char c = spec.charAt(i);
+            if(c <= ' ' || c >= 127 || c == '\\' || c == '#' || (i < end && c == ':'))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
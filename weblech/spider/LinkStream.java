@@ -0,0 +1,163 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import weblech.ui.LechLogger;
+
+/**
+ * Finds the links in a page while it's still downloading. The body is
+ * written to the stream as it arrives, and the links found in each piece
+ * are passed to a Listener straight away, so they can be queued before
+ * the download finishes.
+ *
+ * The charset is sniffed from the first kilobyte. If it isn't
+ * ASCII-compatible the stream gives up, and isComplete() tells the caller
+ * to parse the page the usual way once it's downloaded.
+ */
+public class LinkStream extends OutputStream
+{
+    /** Told about links as they're found. */
+    public interface Listener
+    {
+        /**
+         * @param urls A List of CanonicalURLs, none seen before on this
+         *             page.
+         */
+        void linksFound(List urls);
+    }
+
+    private final HTMLLinkTokenizer tokenizer;
+    private final HTMLLinkTokenizer.LinkHandler handler;
+    /** Where handler puts the links it finds; emptied after each piece. */
+    private final List found;
+    private final String contentType;
+    private final Listener listener;
+
+    /** The start of the page, until the charset is known. */
+    private ByteArrayOutputStream head;
+    private boolean abandoned;
+    private boolean closed;
+
+    /**
+     * @param handler Adds the links the tokenizer finds to found.
+     */
+    LinkStream(HTMLLinkTokenizer tokenizer, HTMLLinkTokenizer.LinkHandler handler, List found, String contentType, Listener listener)
+    {
+        this.tokenizer = tokenizer;
+        this.handler = handler;
+        this.found = found;
+        this.contentType = contentType;
+        this.listener = listener;
+        head = new ByteArrayOutputStream(CharsetSniffer.META_SCAN_LIMIT);
+    }
+
+    public void write(int b)
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+        if(abandoned || closed)
+        {
+            return;
+        }
+        if(head != null)
+        {
+            head.write(b, off, len);
+            if(head.size() >= CharsetSniffer.META_SCAN_LIMIT)
+            {
+                begin();
+            }
+        }
+        else
+        {
+            tokenizer.feed(b, off, len, handler);
+        }
+        deliver();
+    }
+
+    /**
+     * End of the page: pass on the last of the links.
+     */
+    public void close()
+    {
+        if(closed)
+        {
+            return;
+        }
+        if(head != null && !abandoned)
+        {
+            begin();
+        }
+        deliver();
+        closed = true;
+    }
+
+    /**
+     * Whether every link in the page was found. False if the stream gave
+     * up, or hasn't been closed.
+     */
+    public boolean isComplete()
+    {
+        return closed && !abandoned;
+    }
+
+    /**
+     * Sniff the charset from the start of the page, and tokenize what's
+     * been buffered so far.
+     */
+    private void begin()
+    {
+        byte[] bytes = head.toByteArray();
+        head = null;
+        Charset charset = CharsetSniffer.detect(bytes, contentType);
+        if(!CharsetSniffer.isAsciiCompatible(charset))
+        {
+            LechLogger.debug("Can't parse " + charset + " while downloading, leaving it till later");
+            abandoned = true;
+            return;
+        }
+        tokenizer.begin(charset);
+        tokenizer.feed(bytes, 0, bytes.length, handler);
+    }
+
+    private void deliver()
+    {
+        if(!found.isEmpty())
+        {
+            List urls = new ArrayList(found);
+            found.clear();
+            listener.linksFound(urls);
+        }
+    }
+}
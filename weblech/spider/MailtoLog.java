@@ -0,0 +1,191 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import weblech.ui.LechLogger;
+
+/**
+ * Collects the mailto: links found while spidering into the mailto log
+ * file. Each address is written once. The file is kept open, and a
+ * background thread writes addresses in batches, flushing them to the
+ * file every flush interval, on flush() and on close(). Parsing threads
+ * never touch the file.
+ */
+public class MailtoLog implements Runnable
+{
+    /** Queued by flush() to flush the file now. */
+    private static final String FLUSH = new String("flush");
+    /** Queued by close() to stop the writer. */
+    private static final String CLOSE = new String("close");
+
+    private final long flushInterval;
+    /** Addresses already recorded. */
+    private final Set seen;
+    /** Addresses waiting to be written. */
+    private final LinkedBlockingQueue pending;
+    private final Thread writer;
+
+    private final PrintWriter out;
+    private volatile boolean closed;
+
+    /**
+     * Open the log for appending and start its writer thread.
+     */
+    public MailtoLog(File file, long flushInterval) throws IOException
+    {
+        this.flushInterval = flushInterval;
+        seen = new HashSet();
+        pending = new LinkedBlockingQueue();
+        out = new PrintWriter(new BufferedWriter(new FileWriter(file.toString(), true)));
+        closed = false;
+
+        writer = new Thread(this, "Spider-Mailto");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Record an address, unless it's been recorded already.
+     */
+    public void record(String url)
+    {
+        synchronized(seen)
+        {
+            if(!seen.add(url))
+            {
+                return;
+            }
+        }
+        if(!closed)
+        {
+            pending.add(url);
+        }
+    }
+
+    /**
+     * Have the addresses recorded so far written to the file soon.
+     */
+    public void flush()
+    {
+        if(!closed)
+        {
+            pending.add(FLUSH);
+        }
+    }
+
+    /**
+     * Write everything recorded so far, close the file and stop the writer
+     * thread.
+     */
+    public void close()
+    {
+        if(closed)
+        {
+            return;
+        }
+        closed = true;
+        pending.add(CLOSE);
+        try
+        {
+            writer.join();
+        }
+        catch(InterruptedException ignored)
+        {
+        }
+    }
+
+    public void run()
+    {
+        List batch = new ArrayList();
+        boolean dirty = false;
+        long lastFlush = System.currentTimeMillis();
+        while(true)
+        {
+            try
+            {
+                Object first = pending.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if(first != null)
+                {
+                    batch.add(first);
+                }
+            }
+            catch(InterruptedException ignored)
+            {
+            }
+            pending.drainTo(batch);
+
+            boolean flush = System.currentTimeMillis() - lastFlush >= flushInterval;
+            boolean stop = false;
+            for(Iterator i = batch.iterator(); i.hasNext(); )
+            {
+                String s = (String) i.next();
+                if(s == FLUSH)
+                {
+                    flush = true;
+                }
+                else if(s == CLOSE)
+                {
+                    stop = true;
+                }
+                else
+                {
+                    out.println(s);
+                    dirty = true;
+                }
+            }
+            batch.clear();
+
+            if(stop)
+            {
+                out.close();
+                if(out.checkError())
+                {
+                    LechLogger.warn("Error writing mailto log");
+                }
+                return;
+            }
+            if(flush && dirty)
+            {
+                out.flush();
+                dirty = false;
+                lastFlush = System.currentTimeMillis();
+                if(out.checkError())
+                {
+                    LechLogger.warn("Error writing mailto log");
+                }
+            }
+        }
+    }
+}
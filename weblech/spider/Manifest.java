@@ -0,0 +1,284 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weblech.ui.LechLogger;
+
+/**
+ * An in-memory index of the files saved under the save root, so the
+ * spider can tell whether a URL is saved, and how big and how old it is,
+ * without asking the file system.
+ *
+ * Built by walking the save root in parallel, or loaded from the copy
+ * written out when the last crawl stopped. That copy is deleted as soon
+ * as it's loaded, so if a crawl doesn't stop cleanly the next one walks
+ * the save root again rather than trusting a stale index.
+ */
+public class Manifest
+{
+    /** Name of the saved manifest, under the save root. */
+    public static final String MANIFEST_FILE = ".manifest";
+
+    /** What's known about one saved file. */
+    public static class Entry
+    {
+        private final long size;
+        private final long modifiedTime;
+
+        Entry(long size, long modifiedTime)
+        {
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getModifiedTime()
+        {
+            return modifiedTime;
+        }
+    }
+
+    private final File root;
+    private final File file;
+    /** Map of relative file name to Entry. */
+    private final Map entries;
+
+    public Manifest(SpiderConfig config)
+    {
+        root = config.getSaveRootDirectory();
+        file = new File(root, MANIFEST_FILE);
+        entries = new ConcurrentHashMap();
+
+        long start = System.currentTimeMillis();
+        if(!load())
+        {
+            entries.clear();
+            ForkJoinPool.commonPool().invoke(new Walk(root.toPath(), true));
+        }
+        LechLogger.info("Manifest of " + entries.size() + " saved files ready in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * A handle on a URL's saved copy, if any, as URLObject(url, type,
+     * config) would make but without touching the file system.
+     *
+     * @param contentType The type it was saved with, or null to guess.
+     */
+    public URLObject lookup(CanonicalURL url, String contentType, SpiderConfig config)
+    {
+        String name = URLObject.convertToRelativeName(url);
+        Entry e = (Entry) entries.get(key(name));
+        if(e == null)
+        {
+            return new URLObject(url, contentType, null, -1, 0, config);
+        }
+        return new URLObject(url, contentType, new File(root, name), e.getSize(), e.getModifiedTime(), config);
+    }
+
+    /**
+     * Record a file just saved.
+     */
+    public void saved(URLObject obj)
+    {
+        String name = URLObject.convertToRelativeName(obj.getSourceURL());
+        File f = new File(root, name);
+        try
+        {
+            BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+            entries.put(key(name), new Entry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception looking up saved file " + f, ioe);
+        }
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Write the manifest out for the next crawl.
+     */
+    public void close()
+    {
+        File temp = new File(file.getPath() + ".new");
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try
+            {
+                out.writeInt(entries.size());
+                for(Iterator i = entries.entrySet().iterator(); i.hasNext(); )
+                {
+                    Map.Entry me = (Map.Entry) i.next();
+                    Entry e = (Entry) me.getValue();
+                    out.writeUTF((String) me.getKey());
+                    out.writeLong(e.getSize());
+                    out.writeLong(e.getModifiedTime());
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            URLObject.moveIntoPlace(temp, file);
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception writing manifest, it will be rebuilt next time", ioe);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Normalize a relative name the way the file system will, so names
+     * from URLs match names found walking the save root.
+     */
+    private static String key(String relativeName)
+    {
+        return new File(relativeName).getPath();
+    }
+
+    /**
+     * Load the manifest saved by the last crawl, and delete it.
+     *
+     * @return Whether there was one to load.
+     */
+    private boolean load()
+    {
+        if(!file.exists())
+        {
+            return false;
+        }
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                int count = in.readInt();
+                for(int i = 0; i < count; i++)
+                {
+                    String name = in.readUTF();
+                    entries.put(name, new Entry(in.readLong(), in.readLong()));
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            return true;
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception reading manifest, rebuilding it", ioe);
+            return false;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Indexes one directory, and forks a Walk for each directory in it.
+     */
+    private class Walk extends RecursiveAction
+    {
+        private final Path dir;
+        private final boolean top;
+
+        Walk(Path dir, boolean top)
+        {
+            this.dir = dir;
+            this.top = top;
+        }
+
+        protected void compute()
+        {
+            List subdirs = new ArrayList();
+            try
+            {
+                DirectoryStream stream = Files.newDirectoryStream(dir);
+                try
+                {
+                    for(Iterator i = stream.iterator(); i.hasNext(); )
+                    {
+                        Path p = (Path) i.next();
+                        String name = p.getFileName().toString();
+                        if(top && name.startsWith("."))
+                        {
+                            // The spider's own files
+                            continue;
+                        }
+                        if(name.startsWith(".weblech") && name.endsWith(".part"))
+                        {
+                            continue;
+                        }
+                        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if(attrs.isDirectory())
+                        {
+                            subdirs.add(new Walk(p, false));
+                        }
+                        else if(attrs.isRegularFile())
+                        {
+                            String key = root.toPath().relativize(p).toString();
+                            entries.put(key, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                        }
+                    }
+                }
+                finally
+                {
+                    stream.close();
+                }
+            }
+            catch(IOException ioe)
+            {
+                LechLogger.warn("IO Exception walking " + dir, ioe);
+            }
+            invokeAll(subdirs);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import weblech.ui.LechLogger;
+
+/**
+ * Remembers the validators (ETag and Last-Modified) and content type of
+ * each file saved, so a refresh crawl can ask the server for a page only
+ * if it has changed since.
+ *
+ * Kept in memory, keyed on URL fingerprint, and backed by an append-only
+ * file of records under the save root, of which the last for a URL wins.
+ * The file is rewritten without the superseded records when it's opened
+ * if more than half of them are.
+ */
+public class MetadataStore
+{
+    /** Name of the store's file, under the save root. */
+    public static final String METADATA_FILE = ".metadata";
+
+    /** What's known about one saved file. */
+    public static class Entry
+    {
+        private final String etag;
+        private final String lastModified;
+        private final String contentType;
+
+        public Entry(String etag, String lastModified, String contentType)
+        {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+        }
+
+        /** The ETag header, or null. */
+        public String getETag()
+        {
+            return etag;
+        }
+
+        /** The Last-Modified header, or null. */
+        public String getLastModified()
+        {
+            return lastModified;
+        }
+
+        /** The Content-Type header, or null. */
+        public String getContentType()
+        {
+            return contentType;
+        }
+    }
+
+    private final File file;
+    /** Map of Long fingerprint to Entry. */
+    private final Map entries;
+    private DataOutputStream out;
+
+    /**
+     * Load the store under a save root, creating it if need be.
+     */
+    public MetadataStore(File saveRoot) throws IOException
+    {
+        file = new File(saveRoot, METADATA_FILE);
+        entries = new ConcurrentHashMap();
+        int records = load();
+        if(records < 0 || records > 2 * entries.size())
+        {
+            LechLogger.debug("Compacting metadata store, " + records + " records for " + entries.size() + " files");
+            rewrite();
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * @return What's known about a URL's saved file, or null.
+     */
+    public Entry get(CanonicalURL url)
+    {
+        return (Entry) entries.get(Long.valueOf(url.getFingerprint()));
+    }
+
+    /**
+     * Record what's known about a URL's saved file.
+     */
+    public void put(CanonicalURL url, Entry entry)
+    {
+        Long key = Long.valueOf(url.getFingerprint());
+        entries.put(key, entry);
+        synchronized(this)
+        {
+            if(out == null)
+            {
+                return;
+            }
+            try
+            {
+                write(out, key.longValue(), entry);
+            }
+            catch(IOException ioe)
+            {
+                LechLogger.warn("IO Exception writing metadata store: " + ioe.getMessage(), ioe);
+            }
+        }
+    }
+
+    /**
+     * Write out anything still buffered and close the file.
+     */
+    public synchronized void close()
+    {
+        if(out == null)
+        {
+            return;
+        }
+        try
+        {
+            out.close();
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception closing metadata store: " + ioe.getMessage(), ioe);
+        }
+        out = null;
+    }
+
+    /**
+     * Read the file into entries.
+     *
+     * @return The number of records read, or -1 if the last was torn by
+     *         a crash, and the file must be rewritten before appending.
+     */
+    private int load() throws IOException
+    {
+        if(!file.exists())
+        {
+            return 0;
+        }
+        int records = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            while(true)
+            {
+                in.mark(1);
+                if(in.read() < 0)
+                {
+                    break;
+                }
+                in.reset();
+                long fp = in.readLong();
+                String etag = in.readUTF();
+                String lastModified = in.readUTF();
+                String contentType = in.readUTF();
+                entries.put(Long.valueOf(fp), new Entry(orNull(etag), orNull(lastModified), orNull(contentType)));
+                records++;
+            }
+        }
+        catch(EOFException eofe)
+        {
+            LechLogger.warn("Metadata store ends in a torn record, dropping it");
+            records = -1;
+        }
+        finally
+        {
+            in.close();
+        }
+        LechLogger.info("Loaded metadata for " + entries.size() + " saved files");
+        return records;
+    }
+
+    private void rewrite() throws IOException
+    {
+        File temp = new File(file.getPath() + ".new");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try
+        {
+            for(Iterator i = entries.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry e = (Map.Entry) i.next();
+                write(dos, ((Long) e.getKey()).longValue(), (Entry) e.getValue());
+            }
+        }
+        finally
+        {
+            dos.close();
+        }
+        URLObject.moveIntoPlace(temp, file);
+    }
+
+    private static void write(DataOutputStream dos, long fp, Entry entry) throws IOException
+    {
+        dos.writeLong(fp);
+        dos.writeUTF(entry.getETag() == null ? "" : entry.getETag());
+        dos.writeUTF(entry.getLastModified() == null ? "" : entry.getLastModified());
+        dos.writeUTF(entry.getContentType() == null ? "" : entry.getContentType());
+    }
+
+    private static String orNull(String s)
+    {
+        return s.length() == 0 ? null : s;
+    }
+}
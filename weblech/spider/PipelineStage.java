@@ -0,0 +1,186 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weblech.ui.LechLogger;
+
+/**
+ * One stage of the Spider's download pipeline: a fixed pool of threads
+ * taking tasks from a bounded queue. submit() blocks while the queue is
+ * full, so a slow stage holds back the stages feeding it instead of
+ * letting work pile up in memory.
+ */
+public class PipelineStage
+{
+    private final String name;
+    private final BlockingQueue tasks;
+    private final Thread[] threads;
+    private final AtomicInteger active = new AtomicInteger();
+    /** Queued once per thread to stop the stage. */
+    private static final Runnable STOP = new Runnable()
+    {
+        public void run()
+        {
+        }
+    };
+
+    /**
+     * @param name      Used to name the stage's threads, e.g. "parse".
+     * @param threads   Number of threads working the stage.
+     * @param queueSize Number of tasks that may wait for a thread before
+     *                  submit() blocks.
+     */
+    public PipelineStage(String name, int threads, int queueSize)
+    {
+        this.name = name;
+        this.tasks = new ArrayBlockingQueue(Math.max(1, queueSize));
+        this.threads = new Thread[Math.max(1, threads)];
+        for(int i = 0; i < this.threads.length; i++)
+        {
+            this.threads[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    work();
+                }
+            }, "Spider-" + name + "-" + (i + 1));
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Queue a task, waiting for room if the stage is backed up.
+     */
+    public void submit(Runnable task)
+    {
+        boolean interrupted = false;
+        while(true)
+        {
+            try
+            {
+                tasks.put(task);
+                break;
+            }
+            catch(InterruptedException ie)
+            {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop once every queued task has been run, and wait for that to
+     * happen. No more tasks may be submitted.
+     */
+    public void shutdown()
+    {
+        for(int i = 0; i < threads.length; i++)
+        {
+            submit(STOP);
+        }
+        for(int i = 0; i < threads.length; i++)
+        {
+            try
+            {
+                threads[i].join();
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Number of tasks waiting for a thread. */
+    public int getQueueDepth()
+    {
+        return tasks.size();
+    }
+
+    public int getQueueCapacity()
+    {
+        return tasks.size() + tasks.remainingCapacity();
+    }
+
+    /** Number of tasks being run right now. */
+    public int getActiveCount()
+    {
+        return active.get();
+    }
+
+    public int getThreadCount()
+    {
+        return threads.length;
+    }
+
+    private void work()
+    {
+        while(true)
+        {
+            Runnable task;
+            try
+            {
+                task = (Runnable) tasks.take();
+            }
+            catch(InterruptedException ie)
+            {
+                continue;
+            }
+            if(task == STOP)
+            {
+                return;
+            }
+            active.incrementAndGet();
+            try
+            {
+                task.run();
+            }
+            catch(RuntimeException re)
+            {
+                LechLogger.error("Caught exception in " + name + " stage: " + re.getMessage(), re);
+            }
+            finally
+            {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    public String toString()
+    {
+        return name + " " + getQueueDepth() + "/" + getQueueCapacity() + " queued, "
+            + getActiveCount() + "/" + threads.length + " busy";
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The set of URLs the spider has already downloaded or scheduled.
+ * Implementations are thread-safe, and the batch checkAndAdd takes any
+ * lock once per call rather than once per URL.
+ */
+public interface SeenURLSet extends Serializable
+{
+    /**
+     * Add a URL to the set.
+     *
+     * @return true if the URL was not already in the set.
+     */
+    boolean checkAndAdd(CanonicalURL u);
+
+    /**
+     * Add a URL to the set by its fingerprint, as given by
+     * CanonicalURL.getFingerprint().
+     *
+     * @return true if the URL was not already in the set.
+     */
+    boolean checkAndAdd(long fingerprint);
+
+    /**
+     * Add a List of CanonicalURLs to the set.
+     *
+     * @return A List of the URLs that were not already in the set, in
+     *         their original order.
+     */
+    List checkAndAdd(List urls);
+
+    /**
+     * The number of URLs added to the set.
+     */
+    int size();
+}
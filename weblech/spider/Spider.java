@@ -28,8 +28,16 @@ package weblech.spider;
 import weblech.ui.LechLogger;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
-import java.net.URL;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 
 public class Spider implements Runnable, Constants
 {
@@ -37,246 +45,831 @@ public class Spider implements Runnable, Constants
     private SpiderConfig config;
     /**
      * Download queue.
-     * Thread safety: To access the queue, first synchronize on it.
+     * Thread safety: The queue is thread-safe, no locking needed.
      */
     private DownloadQueue queue;
     /**
      * Set of URLs downloaded or scheduled, so we don't download a
      * URL more than once.
-     * Thread safety: To access the set, first synchronize on it.
+     * Thread safety: The set is thread-safe, no locking needed.
      */
-    private Set urlsDownloadedOrScheduled;
+    private SeenURLSet urlsDownloadedOrScheduled;
     /**
-     * Set of URLs currently being downloaded by Spider threads.
-     * Thread safety: To access the set, first synchronize on it.
+     * Number of downloads currently taking place. A thread counts itself
+     * before it takes a URL from the queue, and stops counting only after
+     * it has queued the URLs found in it. Decrements that could end the
+     * crawl are made holding workLock.
      */
-    private Set urlsDownloading;
+    private AtomicInteger downloadsInProgress;
     /**
-     * Number of downloads currently taking place.
-     * Thread safety: To modify this value, first synchronize on
-     *                the download queue.
+     * Lock that idle threads wait on. Notified when a download finishes
+     * (possibly queueing URLs) or the spider is stopped.
      */
-    private int downloadsInProgress;
+    private final Object workLock = new Object();
     /** Whether the spider should quit */
-    private boolean quit;
-    /** Count of running Spider threads. */
-    private int running;
-    /** Time we last checkpointed. */
-    private long lastCheckpoint;
+    private volatile boolean quit;
+    /** Count of running Spider threads (or dispatchers). */
+    private final AtomicInteger running = new AtomicInteger();
+    /**
+     * Count of fetching threads yet to stop. The last one out drains the
+     * pipeline before it stops counting as running.
+     */
+    private final AtomicInteger fetchersRunning = new AtomicInteger();
+    /** Journal of the crawl, or null if checkpointing is off. */
+    private CrawlJournal journal;
+    /** Whether the crawl was restored from the journal. */
+    private boolean resumed;
+    /** Log of mailto: links found, shared by all threads. */
+    private MailtoLog mailtoLog;
+    /** Bytes downloaded, and what they decoded to when compressed. */
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicLong bytesDecoded = new AtomicLong();
+    /** Validators of saved files, or null if not making conditional requests. */
+    private MetadataStore metadata;
+    /** Where downloads are saved. */
+    private Storage storage;
+    /** Counts of duplicate bodies, or null if not deduplicating. */
+    private Dedup dedup;
+    /** Writes downloads behind the fetch threads, or null. */
+    private DiskWriter diskWriter;
+    /** Fetch engine shared by all threads, so connections can be reused. */
+    private Fetcher fetcher;
+    /** The connections the fetch engine keeps to each host. */
+    private ConnectionPool connectionPool;
+    /**
+     * Pipeline stages downloads are handed on to, or null if each thread
+     * stores and parses its own downloads.
+     */
+    private PipelineStage ioStage;
+    private PipelineStage parseStage;
+    /**
+     * Parser shared by all threads, so links resolved on one page are
+     * remembered for the rest. It keeps no other state between pages.
+     */
+    private HTMLParser htmlParser;
 
     public Spider(SpiderConfig config)
+    {
+        this(config, null);
+    }
+
+    /**
+     * @param fetcher Fetch engine to use instead of the one the config
+     *                names, or null.
+     */
+    Spider(SpiderConfig config, Fetcher fetcher)
     {
         this.config = config;
+        this.fetcher = fetcher;
         queue = new DownloadQueue(config);
-        queue.queueURL(new URLToDownload(config.getStartLocation(), 0));
-        urlsDownloadedOrScheduled = new HashSet();
-        urlsDownloading = new HashSet();
-        downloadsInProgress = 0;
-        lastCheckpoint = 0;
+        CanonicalURL start = new CanonicalURL(config.getStartLocation());
+        queue.queueURL(new URLToDownload(start, 0));
+        urlsDownloadedOrScheduled = createSeenURLSet();
+        urlsDownloadedOrScheduled.checkAndAdd(start);
+        downloadsInProgress = new AtomicInteger();
+        resumed = false;
+    }
+
+    private SeenURLSet createSeenURLSet()
+    {
+        if("bloom".equalsIgnoreCase(config.getSeenURLSet()))
+        {
+            return new BloomURLSet(config.getSeenFalsePositiveRate());
+        }
+        else
+        {
+            return new FingerprintURLSet();
+        }
     }
 
     public void start()
     {
         quit = false;
-        running = 0;
+        connectionPool = new ConnectionPool(config);
+        if(fetcher == null)
+        {
+            fetcher = URLGetter.createFetcher(config, connectionPool);
+        }
+
+        if(config.getCheckpointInterval() > 0)
+        {
+            try
+            {
+                journal = new CrawlJournal(new File(JOURNAL_FILE), config.getCheckpointInterval(), resumed);
+                if(!resumed)
+                {
+                    journal.enqueued(new URLToDownload(new CanonicalURL(config.getStartLocation()), 0));
+                }
+            }
+            catch(IOException ioe)
+            {
+                LechLogger.warn("IO Exception opening crawl journal, carrying on without: " + ioe.getMessage(), ioe);
+                journal = null;
+            }
+        }
+
+        try
+        {
+            long flushInterval = config.getCheckpointInterval() > 0 ? config.getCheckpointInterval() : MAILTO_FLUSH_INTERVAL;
+            mailtoLog = new MailtoLog(config.getMailtoLogFile(), flushInterval);
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception opening mailto log, appending to it per address instead: " + ioe.getMessage(), ioe);
+            mailtoLog = null;
+        }
+
+        if(config.useConditionalGet())
+        {
+            try
+            {
+                metadata = new MetadataStore(config.getSaveRootDirectory());
+            }
+            catch(IOException ioe)
+            {
+                LechLogger.warn("IO Exception opening metadata store, refreshing saved files unconditionally: " + ioe.getMessage(), ioe);
+                metadata = null;
+            }
+        }
+
+        storage = null;
+        dedup = config.useDedup() ? new Dedup() : null;
+        if("warc".equalsIgnoreCase(config.getStorage()))
+        {
+            try
+            {
+                storage = new WarcStorage(config, dedup);
+            }
+            catch(IOException ioe)
+            {
+                LechLogger.warn("IO Exception opening WARC storage, saving a file per URL instead: " + ioe.getMessage(), ioe);
+            }
+        }
+        if(storage == null)
+        {
+            storage = new FileStorage(config, config.useManifest() ? new Manifest(config) : null, dedup);
+        }
+
+        diskWriter = config.useWriteBehind() ? new DiskWriter(config) : null;
+
+        htmlParser = new HTMLParser(config, mailtoLog);
+
+        if(config.usePipeline())
+        {
+            LechLogger.info("Starting Spider pipeline");
+            parseStage = new PipelineStage("parse", config.getParseThreads(), config.getStageQueueSize());
+            ioStage = new PipelineStage("io", config.getIOThreads(), config.getStageQueueSize());
+        }
+
+        if(config.useVirtualThreads())
+        {
+            LechLogger.info("Starting Spider dispatcher");
+            Thread t = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    dispatch();
+                }
+            }, "Spider-Dispatcher");
+            running.incrementAndGet();
+            fetchersRunning.incrementAndGet();
+            t.start();
+            return;
+        }
 
         for(int i = 0; i < config.getSpiderThreads(); i++)
         {
             LechLogger.info("Starting Spider thread");
             Thread t = new Thread(this, "Spider-Thread-" + (i + 1));
+            running.incrementAndGet();
+            fetchersRunning.incrementAndGet();
             t.start();
-            running++;
         }
     }
 
     public void stop()
     {
         quit = true;
+        if(mailtoLog != null)
+        {
+            mailtoLog.flush();
+        }
+        synchronized(workLock)
+        {
+            workLock.notifyAll();
+        }
     }
 
     public boolean isRunning()
     {
-        return running == 0;
+        return running.get() > 0;
+    }
+
+    /**
+     * Bytes received from servers so far, compressed or not.
+     */
+    public long getBytesTransferred()
+    {
+        return bytesTransferred.get();
+    }
+
+    /**
+     * Bytes of content received so far, after decompression.
+     */
+    public long getBytesDecoded()
+    {
+        return bytesDecoded.get();
     }
 
-    private void checkpointIfNeeded()
+    /**
+     * Describe how many unwanted bodies were read to save their
+     * connections, or "" before the spider has started.
+     */
+    public String getConnectionStatus()
     {
-        if(config.getCheckpointInterval() == 0)
+        ConnectionPool pool = connectionPool;
+        return pool == null ? "" : pool.toString();
+    }
+
+    /**
+     * Describe how many bodies were already stored, or "" if the spider
+     * isn't deduplicating.
+     */
+    public String getDedupStatus()
+    {
+        Dedup d = dedup;
+        return d == null ? "" : d.toString();
+    }
+
+    /**
+     * Describe how backed up the pipeline stages are, or "" if the spider
+     * isn't pipelined.
+     */
+    public String getPipelineStatus()
+    {
+        PipelineStage io = ioStage;
+        PipelineStage parse = parseStage;
+        if(io == null || parse == null)
         {
-            return;
+            return "";
+        }
+        return io + "; " + parse;
+    }
+
+    /**
+     * Restore the crawl journalled by an earlier run, to carry on where it
+     * left off. Call before start().
+     */
+    public void readCheckpoint()
+    {
+        try
+        {
+            DownloadQueue restoredQueue = new DownloadQueue(config);
+            SeenURLSet restoredSeen = createSeenURLSet();
+            int queued = CrawlJournal.replay(new File(JOURNAL_FILE), restoredQueue, restoredSeen);
+            queue = restoredQueue;
+            urlsDownloadedOrScheduled = restoredSeen;
+            resumed = true;
+            LechLogger.info("Restored " + queued + " queued URLs from " + JOURNAL_FILE);
+        }
+        catch(Exception e)
+        {
+            LechLogger.error("Caught exception reading checkpoint: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Called as each Spider thread or dispatcher stops. The last one out
+     * lets the pipeline and disk writer finish what they hold, then
+     * closes the mailto log, the metadata store, the storage and the
+     * journal.
+     */
+    private void threadStopped()
+    {
+        if(fetchersRunning.decrementAndGet() == 0)
+        {
+            LechLogger.info("Transferred " + bytesTransferred.get() + " bytes for " + bytesDecoded.get() + " bytes of content");
+            if(dedup != null)
+            {
+                LechLogger.info("Deduplicated " + dedup);
+            }
+            LechLogger.info("Connections: " + connectionPool);
+            if(ioStage != null)
+            {
+                // Downstream stages last, the io stage feeds the parse stage
+                ioStage.shutdown();
+                parseStage.shutdown();
+            }
+            if(diskWriter != null)
+            {
+                // Runs any stores still queued behind their writes
+                diskWriter.shutdown();
+            }
+            if(mailtoLog != null)
+            {
+                mailtoLog.close();
+            }
+            if(metadata != null)
+            {
+                metadata.close();
+            }
+            storage.close();
+            if(journal != null)
+            {
+                journal.close();
+            }
         }
+        running.decrementAndGet();
+    }
 
-        if(System.currentTimeMillis() - lastCheckpoint > config.getCheckpointInterval())
+    public void run()
+    {
+        try
         {
-            synchronized(queue)
+            URLGetter urlGetter = new URLGetter(config, fetcher, metadata, storage, diskWriter);
+
+            while(true)
             {
-                if(System.currentTimeMillis() - lastCheckpoint > config.getCheckpointInterval())
+                URLToDownload nextURL = takeNextURL();
+                if(nextURL == null)
                 {
-                    writeCheckpoint();
-                    lastCheckpoint = System.currentTimeMillis();
+                    break;
                 }
+                processURL(nextURL, urlGetter);
             }
         }
+        finally
+        {
+            LechLogger.info("Spider thread stopping [" + config.getStartLocation() + "]" );
+            threadStopped();
+        }
     }
 
-    private void writeCheckpoint()
+    /**
+     * Hand each URL to a task of its own, with at most maxConcurrentFetches
+     * in flight. Once the crawl finishes or the spider is stopped, waits
+     * for the tasks still running before returning.
+     */
+    private void dispatch()
     {
-        LechLogger.debug("writeCheckpoint()");
+        final URLGetter urlGetter = new URLGetter(config, fetcher, metadata, storage, diskWriter);
+        final Semaphore permits = new Semaphore(config.getMaxConcurrentFetches());
+        ExecutorService executor = createTaskExecutor();
+
         try
         {
-            FileOutputStream fos = new FileOutputStream("spider.checkpoint", false);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(queue);
-            oos.writeObject(urlsDownloading);
-            oos.close();
+            while(true)
+            {
+                permits.acquireUninterruptibly();
+                final URLToDownload nextURL = takeNextURL();
+                if(nextURL == null)
+                {
+                    permits.release();
+                    break;
+                }
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            processURL(nextURL, urlGetter);
+                        }
+                        finally
+                        {
+                            permits.release();
+                        }
+                    }
+                });
+            }
         }
-        catch(IOException ioe)
+        finally
         {
-            LechLogger.warn("IO Exception attempting checkpoint: " + ioe.getMessage(), ioe);
+            executor.shutdown();
+            try
+            {
+                while(!executor.awaitTermination(SPIDER_STOP_PAUSE, TimeUnit.MILLISECONDS))
+                {
+                    LechLogger.debug("Waiting for Spider tasks to finish");
+                }
+            }
+            catch(InterruptedException ie)
+            {
+                executor.shutdownNow();
+            }
+            LechLogger.info("Spider dispatcher stopping [" + config.getStartLocation() + "]" );
+            threadStopped();
         }
     }
 
-    public void readCheckpoint()
+    /**
+     * An executor running each task on a new virtual thread, or a pool of
+     * platform threads where the JVM doesn't have virtual threads.
+     */
+    private ExecutorService createTaskExecutor()
     {
         try
         {
-            FileInputStream fis = new FileInputStream("spider.checkpoint");
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            queue = (DownloadQueue) ois.readObject();
-            urlsDownloading = (Set) ois.readObject();
-            queue.queueURLs(urlsDownloading);
-            urlsDownloading.clear();
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+            return (ExecutorService) m.invoke(null, new Object[0]);
         }
         catch(Exception e)
         {
-            LechLogger.error("Caught exception reading checkpoint: " + e.getMessage(), e);
+            LechLogger.info("Virtual threads not available, using platform threads for Spider tasks");
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    return new Thread(r, "Spider-Task-" + count.incrementAndGet());
+                }
+            });
         }
     }
 
-    public void run()
+    /**
+     * Download a URL taken from the queue. Unless pipelined, also store it,
+     * queue the new URLs found in it and stop counting it as a download in
+     * progress; otherwise that's left to the io and parse stages. A
+     * RuntimeException is logged and ends this URL, not the thread.
+     */
+    private void processURL(final URLToDownload nextURL, URLGetter urlGetter)
     {
-        HTMLParser htmlParser = new HTMLParser(config);
-        URLGetter urlGetter = new URLGetter(config);
+        StreamingLinks streamingLinks = config.useStreamingParse() ? new StreamingLinks(nextURL) : null;
+        URLObject fetched = null;
+        boolean failed = false;
+        try
+        {
+            fetched = fetchURL(nextURL, urlGetter, streamingLinks);
+        }
+        catch(RuntimeException re)
+        {
+            LechLogger.error("Caught exception downloading " + nextURL.getURL(), re);
+            failed = true;
+        }
+        finally
+        {
+            // Before finishURL(), so whoever that wakes can take from the host
+            hostFinished(nextURL);
+        }
+        if(failed)
+        {
+            finishURL(nextURL);
+            return;
+        }
+        final URLObject obj = fetched;
+        if(obj != null)
+        {
+            bytesTransferred.addAndGet(obj.getTransferredBytes());
+            bytesDecoded.addAndGet(obj.getDecodedBytes());
+        }
+
+        // Links found while downloading are queued already
+        final boolean linksQueued = streamingLinks != null && streamingLinks.isComplete();
 
-        while((queueSize() > 0 || downloadsInProgress > 0) && quit == false)
+        if(ioStage == null)
         {
-            checkpointIfNeeded();
-            if(queueSize() == 0 && downloadsInProgress > 0)
+            DiskWriter.Output write = obj == null ? null : obj.getWrite();
+            try
+            {
+                if(obj != null)
+                {
+                    if(write == null)
+                    {
+                        storeURL(obj);
+                    }
+                    if(!linksQueued)
+                    {
+                        queueNewURLs(nextURL, extractLinks(nextURL, obj));
+                    }
+                }
+            }
+            catch(RuntimeException re)
             {
-                // Wait for a download to finish before seeing if this thread should stop
-                try
+                LechLogger.error("Caught exception processing " + nextURL.getURL(), re);
+            }
+            finally
+            {
+                if(write == null)
                 {
-                    Thread.sleep(QUEUE_CHECK_INTERVAL);
+                    finishURL(nextURL);
                 }
-                catch(InterruptedException ignored)
+                else
                 {
+                    // Store it once it's written, without waiting here. It
+                    // isn't finished, or journalled as complete, until then
+                    write.then(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                storeURL(obj);
+                            }
+                            finally
+                            {
+                                finishURL(nextURL);
+                            }
+                        }
+                    });
                 }
-                // Have another go at the loop
-                continue;
             }
-            else if(queueSize() == 0)
+            return;
+        }
+
+        ioStage.submit(new Runnable()
+        {
+            public void run()
+            {
+                storeAndHandOn(nextURL, obj, linksQueued);
+            }
+        });
+    }
+
+    /**
+     * io stage: store a download and read back a cached page, then hand it
+     * to the parse stage if it has links in.
+     *
+     * @param linksQueued Whether the links were found and queued while
+     *                    downloading, so there's no need to parse.
+     */
+    private void storeAndHandOn(final URLToDownload nextURL, final URLObject obj, boolean linksQueued)
+    {
+        boolean handedOn = false;
+        try
+        {
+            if(obj == null)
             {
-                break;
+                return;
             }
-            URLToDownload nextURL;
-            synchronized(queue)
+            storeURL(obj);
+            if(linksQueued)
             {
-                nextURL = queue.getNextInQueue();
-                downloadsInProgress++;
+                return;
             }
-            synchronized(urlsDownloading)
+            if(obj.isHTML() || obj.isXML())
             {
-                urlsDownloading.add(nextURL);
+                obj.loadContent();
+                parseStage.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            queueNewURLs(nextURL, extractLinks(nextURL, obj));
+                        }
+                        finally
+                        {
+                            finishURL(nextURL);
+                        }
+                    }
+                });
+                handedOn = true;
             }
-            int newDepth = nextURL.getDepth() + 1;
-            int maxDepth = config.getMaxDepth();
-            synchronized(urlsDownloading)
+            else
+            {
+                extractLinks(nextURL, obj);
+            }
+        }
+        finally
+        {
+            if(!handedOn)
             {
-                urlsDownloading.remove(nextURL);
+                finishURL(nextURL);
             }
-            List newURLs = downloadURL(nextURL, urlGetter, htmlParser);
+        }
+    }
 
-            newURLs = filterURLs(newURLs);
+    /**
+     * Queue the new URLs found in a page, that aren't too deep and haven't
+     * been seen before.
+     */
+    private void queueNewURLs(URLToDownload nextURL, List newURLs)
+    {
+        int newDepth = nextURL.getDepth() + 1;
+        int maxDepth = config.getMaxDepth();
 
-            ArrayList u2dsToQueue = new ArrayList();
+        newURLs = filterURLs(newURLs);
+
+        ArrayList u2dsToQueue = new ArrayList();
+        // Download if not yet downloaded, and the new depth is less than the maximum
+        if(maxDepth == 0 || newDepth <= maxDepth)
+        {
+            newURLs = urlsDownloadedOrScheduled.checkAndAdd(newURLs);
             for(Iterator i = newURLs.iterator(); i.hasNext(); )
             {
-                URL u = (URL) i.next();
-                // Download if not yet downloaded, and the new depth is less than the maximum
-                synchronized(urlsDownloadedOrScheduled)
-                {
-                    if(!urlsDownloadedOrScheduled.contains(u)
-                    && (maxDepth == 0 || newDepth <= maxDepth))
-                    {
-                        u2dsToQueue.add(new URLToDownload(u, nextURL.getURL(), newDepth));
-                        urlsDownloadedOrScheduled.add(u);
-                    }
-                }
+                CanonicalURL u = (CanonicalURL) i.next();
+                u2dsToQueue.add(new URLToDownload(u, nextURL.getURL(), newDepth));
             }
-            synchronized(queue)
+        }
+        if(journal != null)
+        {
+            journal.enqueued(u2dsToQueue);
+        }
+        queue.queueURLs(u2dsToQueue);
+        if(!u2dsToQueue.isEmpty())
+        {
+            // Wake idle threads now, the page may not be finished with yet
+            synchronized(workLock)
+            {
+                workLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queues the links in a page as they're found while it downloads.
+     */
+    private class StreamingLinks implements URLGetter.BodyListener, LinkStream.Listener
+    {
+        private final URLToDownload url;
+        private LinkStream stream;
+
+        StreamingLinks(URLToDownload url)
+        {
+            this.url = url;
+        }
+
+        public OutputStream bodyStarted(URLToDownload u, String contentType)
+        {
+            if(!URLObject.isParseable(contentType))
             {
-                queue.queueURLs(u2dsToQueue);
-                downloadsInProgress--;
+                return null;
             }
+            stream = htmlParser.openLinkStream(url.getURL(), contentType, this);
+            return stream;
+        }
+
+        public void linksFound(List urls)
+        {
+            queueNewURLs(url, urls);
+        }
+
+        /**
+         * Whether all the links in the page were found and queued.
+         */
+        public boolean isComplete()
+        {
+            return stream != null && stream.isComplete();
         }
-        LechLogger.info("Spider thread stopping [" + config.getStartLocation() + "]" );
-        running--;
     }
 
     /**
-     * Get the size of the download queue in a thread-safe manner.
+     * Free up a URL's host for another download, and wake any thread
+     * waiting for a host to become eligible.
      */
-    private int queueSize()
+    private void hostFinished(URLToDownload nextURL)
     {
-        synchronized(queue)
+        queue.downloadFinished(nextURL);
+        synchronized(workLock)
         {
-            return queue.size();
+            workLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop counting a URL as a download in progress, once everything found
+     * in it is queued.
+     */
+    private void finishURL(URLToDownload nextURL)
+    {
+        if(journal != null)
+        {
+            journal.completed(nextURL);
+        }
+        synchronized(workLock)
+        {
+            downloadsInProgress.decrementAndGet();
+            workLock.notifyAll();
+        }
+    }
+
+    /**
+     * Take the next URL to download, blocking until one is queued or its
+     * host becomes eligible. The caller then counts as a download in
+     * progress.
+     *
+     * @return The next URL, or null if the crawl is finished (nothing
+     *         queued and nothing downloading) or the spider was stopped.
+     */
+    private URLToDownload takeNextURL()
+    {
+        while(!quit)
+        {
+            // Count ourselves first, so that nobody sees an empty queue
+            // and no downloads while we hold the URL
+            downloadsInProgress.incrementAndGet();
+            URLToDownload nextURL = queue.getNextInQueue();
+            if(nextURL != null)
+            {
+                return nextURL;
+            }
+
+            synchronized(workLock)
+            {
+                if(downloadsInProgress.decrementAndGet() == 0 && queue.size() == 0)
+                {
+                    // Crawl finished, wake everyone else up to stop too
+                    workLock.notifyAll();
+                    return null;
+                }
+                long delay = queue.getDelayUntilReady();
+                if(delay != 0 && !quit)
+                {
+                    try
+                    {
+                        // Wait indefinitely if the queue is empty
+                        workLock.wait(delay < 0 ? 0 : delay);
+                    }
+                    catch(InterruptedException ignored)
+                    {
+                    }
+                }
+            }
         }
+        return null;
     }
 
     /**
-     * Get a URL, and return new URLs that are referenced from it.
+     * Get a URL, from disk if it's there and needn't be refreshed.
      *
-     * @return A List of URL objects.
+     * @param listener Told when a download starts, or null.
+     * @return The URL, or null if it couldn't be downloaded. Pending if
+     *         pipelined, to be committed by the io stage.
      */
-    private List downloadURL(URLToDownload url, URLGetter urlGetter, HTMLParser htmlParser)
+    private URLObject fetchURL(URLToDownload url, URLGetter urlGetter, URLGetter.BodyListener listener)
     {
-        LechLogger.debug("downloadURL(" + url + ")");
+        LechLogger.debug("fetchURL(" + url + ")");
+        // Writes behind are stored once they're done, by the writer
+        boolean commit = ioStage == null && diskWriter == null;
 
-        // Bail out early if image and already on disk
-        URLObject obj = new URLObject(url.getURL(), config);
+        // Bail out early if image and already on disk. Only looks the file
+        // up, it's read if and when it's parsed.
+        MetadataStore.Entry saved = metadata == null ? null : metadata.get(url.getURL());
+        URLObject obj = storage.lookup(url.getURL(), saved == null ? null : saved.getContentType());
         if(obj.existsOnDisk())
         {
             if(config.refreshHTMLs() && (obj.isHTML() || obj.isXML()))
             {
-                LechLogger.info("Q: [" + queue + "] " + url);
-                obj = urlGetter.getURL(url);
+                LechLogger.info("Q: [" + describeQueues() + "] " + url);
+                obj = urlGetter.getURL(url, commit, listener);
             }
             else if(config.refreshImages() && obj.isImage())
             {
-                LechLogger.info("Q: [" + queue + "] " + url);
-                obj = urlGetter.getURL(url);
+                LechLogger.info("Q: [" + describeQueues() + "] " + url);
+                obj = urlGetter.getURL(url, commit, listener);
             }
         }
         else
         {
-            LechLogger.info("Q: [" + queue + "] " + url);
-            obj = urlGetter.getURL(url);
+            LechLogger.info("Q: [" + describeQueues() + "] " + url);
+            obj = urlGetter.getURL(url, commit, listener);
         }
+        return obj;
+    }
 
-        if(obj == null)
+    private String describeQueues()
+    {
+        return ioStage == null ? queue.toString() : queue + "; " + getPipelineStatus();
+    }
+
+    /**
+     * Make sure a URL is saved under the save root, and remember its
+     * validators if it was just downloaded.
+     */
+    private void storeURL(URLObject obj)
+    {
+        try
         {
-            return new ArrayList();
+            storage.store(obj);
         }
-
-        if(!obj.existsOnDisk())
+        catch(IOException ioe)
         {
-            obj.writeToFile();
+            LechLogger.warn("IO Exception saving " + obj.getSourceURL() + ": " + ioe.getMessage(), ioe);
+            return;
         }
+        if(metadata != null && (obj.getETag() != null || obj.getLastModified() != null))
+        {
+            metadata.put(obj.getSourceURL(), new MetadataStore.Entry(obj.getETag(), obj.getLastModified(), obj.getContentType()));
+        }
+    }
 
+    /**
+     * Return new URLs that are referenced from a URL.
+     *
+     * @return A List of CanonicalURL objects.
+     */
+    private List extractLinks(URLToDownload url, URLObject obj)
+    {
         if(obj.isHTML() || obj.isXML())
         {
-            return htmlParser.parseLinksInDocument(url.getURL(), obj.getStringContent());
+            ByteBuffer content = obj.getContentBuffer();
+            if(content == null)
+            {
+                LechLogger.warn("Couldn't read " + url.getURL() + ", its links won't be followed");
+                return new ArrayList();
+            }
+            return htmlParser.parseLinksInDocument(url.getURL(), content, obj.getContentType());
         }
         else if(obj.isImage())
         {
@@ -290,26 +883,22 @@ public class Spider implements Runnable, Constants
         }
     }
 
+    /**
+     * Keep only the URLs matching the configured URL match string. Already
+     * seen URLs are weeded out afterwards, in one batch.
+     */
     private List filterURLs(List URLs)
     {
         String match = config.getURLMatch();
         ArrayList retVal = new ArrayList();
 
-        synchronized(urlsDownloadedOrScheduled)
+        for(Iterator i = URLs.iterator(); i.hasNext(); )
         {
-            for(Iterator i = URLs.iterator(); i.hasNext(); )
+            CanonicalURL u = (CanonicalURL) i.next();
+            String s = u.toExternalForm();
+            if(s.indexOf(match) != -1)
             {
-                URL u = (URL) i.next();
-                if(urlsDownloadedOrScheduled.contains(u))
-                {
-                    continue;
-                }
-
-                String s = u.toString();
-                if(s.indexOf(match) != -1)
-                {
-                    retVal.add(u);
-                }
+                retVal.add(u);
             }
         }
         return retVal;
@@ -319,7 +908,7 @@ public class Spider implements Runnable, Constants
 	 * A basic check to see if there is another spider downloading the same thing
 	 */
 	protected boolean compareSpiderConfig ( SpiderConfig sc )   {
-		return config.getStartLocation().equals ( sc.getStartLocation() );
+		return new CanonicalURL ( config.getStartLocation() ).equals ( new CanonicalURL ( sc.getStartLocation() ) );
 	}
 	
 	/* Method By Coleman
@@ -38,6 +38,12 @@ public class SpiderConfig implements Serializable
     private File saveRootDirectory;
     private File mailtoLogFile;
 
+    /** Tags and attributes the HTML parser follows by default. */
+    private static final String DEFAULT_LINK_ATTRIBUTES = "img:src,a:href,body:background,frame:src,link:href,embed:src";
+
+    /** Size WARC segment files are rolled over at by default, 1GB. */
+    private static final long DEFAULT_WARC_SEGMENT_SIZE = 1024L * 1024 * 1024;
+
     private boolean refreshHTMLs;
     private boolean refreshImages;
     private boolean refreshOthers;
@@ -63,6 +69,45 @@ public class SpiderConfig implements Serializable
 
     private long checkpointInterval;
 
+    private long hostDelay;
+    private int hostBurst;
+
+    private int hostFrontierMemoryLimit;
+
+    private String seenURLSet;
+    private double seenFalsePositiveRate;
+
+    private String fetchEngine;
+    private int parseBufferSize;
+
+    private boolean virtualThreads;
+    private int maxConcurrentFetches;
+    private int maxFetchesPerHost;
+    private int maxConnectionsPerHost;
+
+    private Map linkAttributes;
+    private int resolveCacheSize;
+    private boolean streamingParse;
+    private boolean conditionalGet;
+    private boolean compression;
+    private boolean storeCompressed;
+    private boolean manifest;
+    private String storage;
+    private long warcSegmentSize;
+    private boolean dedup;
+    private boolean writeBehind;
+    private int writerThreads;
+    private int writerQueueSize;
+    private int writerBufferSize;
+    private boolean directBuffers;
+    private String fsync;
+    private boolean directTransfer;
+
+    private boolean pipeline;
+    private int ioThreads;
+    private int parseThreads;
+    private int stageQueueSize;
+
     /**
      * Create a default config.
      */
@@ -103,6 +148,45 @@ public class SpiderConfig implements Serializable
         spiderThreads = 1;
 
         checkpointInterval = 0;
+
+        hostDelay = 0;
+        hostBurst = 1;
+
+        hostFrontierMemoryLimit = 10000;
+
+        seenURLSet = "exact";
+        seenFalsePositiveRate = 0.0001;
+
+        fetchEngine = "urlconnection";
+        parseBufferSize = 1024 * 1024;
+
+        virtualThreads = false;
+        maxConcurrentFetches = 1000;
+        maxFetchesPerHost = 0;
+        maxConnectionsPerHost = 0;
+
+        linkAttributes = parseLinkAttributes(DEFAULT_LINK_ATTRIBUTES);
+        resolveCacheSize = 10000;
+        streamingParse = false;
+        conditionalGet = false;
+        compression = false;
+        storeCompressed = false;
+        manifest = false;
+        storage = "files";
+        warcSegmentSize = DEFAULT_WARC_SEGMENT_SIZE;
+        dedup = false;
+        writeBehind = false;
+        writerThreads = 2;
+        writerQueueSize = 16;
+        writerBufferSize = 65536;
+        directBuffers = false;
+        fsync = DiskWriter.FSYNC_NEVER;
+        directTransfer = true;
+
+        pipeline = false;
+        ioThreads = 2;
+        parseThreads = 0;
+        stageQueueSize = 100;
     }
 
     /**
@@ -208,6 +292,192 @@ public class SpiderConfig implements Serializable
             LechLogger.error("Caught number format exception parsing checkpoint interval, defaulting to 0", nfe);
             spiderThreads = 1;
         }
+
+        try
+        {
+            String delayStr = props.getProperty("hostDelay", "0");
+            hostDelay = Long.parseLong(delayStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing host delay, defaulting to 0", nfe);
+            hostDelay = 0;
+        }
+
+        try
+        {
+            String burstStr = props.getProperty("hostBurst", "1");
+            hostBurst = Math.max(1, Integer.parseInt(burstStr));
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing host burst, defaulting to 1", nfe);
+            hostBurst = 1;
+        }
+
+        try
+        {
+            String limitStr = props.getProperty("hostFrontierMemoryLimit", "10000");
+            hostFrontierMemoryLimit = Integer.parseInt(limitStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing host frontier memory limit, defaulting to 10000", nfe);
+            hostFrontierMemoryLimit = 10000;
+        }
+
+        seenURLSet = props.getProperty("seenURLSet", "exact");
+        try
+        {
+            String rateStr = props.getProperty("seenFalsePositiveRate", "0.0001");
+            seenFalsePositiveRate = Double.parseDouble(rateStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing seen false positive rate, defaulting to 0.0001", nfe);
+            seenFalsePositiveRate = 0.0001;
+        }
+
+        fetchEngine = props.getProperty("fetchEngine", "urlconnection");
+        try
+        {
+            String bufferStr = props.getProperty("parseBufferSize", "1048576");
+            parseBufferSize = Integer.parseInt(bufferStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing parse buffer size, defaulting to 1048576", nfe);
+            parseBufferSize = 1024 * 1024;
+        }
+
+        virtualThreads = Boolean.valueOf(props.getProperty("virtualThreads", "false")).booleanValue();
+        try
+        {
+            String fetchesStr = props.getProperty("maxConcurrentFetches", "1000");
+            maxConcurrentFetches = Math.max(1, Integer.parseInt(fetchesStr));
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing max concurrent fetches, defaulting to 1000", nfe);
+            maxConcurrentFetches = 1000;
+        }
+
+        try
+        {
+            String perHostStr = props.getProperty("maxFetchesPerHost", "0");
+            maxFetchesPerHost = Integer.parseInt(perHostStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing max fetches per host, defaulting to 0", nfe);
+            maxFetchesPerHost = 0;
+        }
+
+        try
+        {
+            String connectionsStr = props.getProperty("maxConnectionsPerHost", "0");
+            maxConnectionsPerHost = Integer.parseInt(connectionsStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing max connections per host, defaulting to 0", nfe);
+            maxConnectionsPerHost = 0;
+        }
+
+        linkAttributes = parseLinkAttributes(props.getProperty("linkAttributes", DEFAULT_LINK_ATTRIBUTES));
+        try
+        {
+            String cacheStr = props.getProperty("resolveCacheSize", "10000");
+            resolveCacheSize = Integer.parseInt(cacheStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing resolve cache size, defaulting to 10000", nfe);
+            resolveCacheSize = 10000;
+        }
+        streamingParse = Boolean.valueOf(props.getProperty("streamingParse", "false")).booleanValue();
+        conditionalGet = Boolean.valueOf(props.getProperty("conditionalGet", "false")).booleanValue();
+        compression = Boolean.valueOf(props.getProperty("compression", "false")).booleanValue();
+        storeCompressed = Boolean.valueOf(props.getProperty("storeCompressed", "false")).booleanValue();
+        manifest = Boolean.valueOf(props.getProperty("manifest", "false")).booleanValue();
+        storage = props.getProperty("storage", "files");
+        try
+        {
+            String segmentStr = props.getProperty("warcSegmentSize", String.valueOf(DEFAULT_WARC_SEGMENT_SIZE));
+            warcSegmentSize = Long.parseLong(segmentStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing WARC segment size, defaulting to " + DEFAULT_WARC_SEGMENT_SIZE, nfe);
+            warcSegmentSize = DEFAULT_WARC_SEGMENT_SIZE;
+        }
+        dedup = Boolean.valueOf(props.getProperty("dedup", "false")).booleanValue();
+
+        writeBehind = Boolean.valueOf(props.getProperty("writeBehind", "false")).booleanValue();
+        try
+        {
+            writerThreads = Integer.parseInt(props.getProperty("writerThreads", "2"));
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing number of writer threads, defaulting to 2", nfe);
+            writerThreads = 2;
+        }
+        try
+        {
+            writerQueueSize = Integer.parseInt(props.getProperty("writerQueueSize", "16"));
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing writer queue size, defaulting to 16", nfe);
+            writerQueueSize = 16;
+        }
+        try
+        {
+            writerBufferSize = Integer.parseInt(props.getProperty("writerBufferSize", "65536"));
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing writer buffer size, defaulting to 65536", nfe);
+            writerBufferSize = 65536;
+        }
+        directBuffers = Boolean.valueOf(props.getProperty("directBuffers", "false")).booleanValue();
+        fsync = props.getProperty("fsync", DiskWriter.FSYNC_NEVER);
+        directTransfer = Boolean.valueOf(props.getProperty("directTransfer", "true")).booleanValue();
+
+        pipeline = Boolean.valueOf(props.getProperty("pipeline", "false")).booleanValue();
+        try
+        {
+            String ioStr = props.getProperty("ioThreads", "2");
+            ioThreads = Math.max(1, Integer.parseInt(ioStr));
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing I/O threads, defaulting to 2", nfe);
+            ioThreads = 2;
+        }
+
+        try
+        {
+            String parseStr = props.getProperty("parseThreads", "0");
+            parseThreads = Integer.parseInt(parseStr);
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing parse threads, defaulting to 0", nfe);
+            parseThreads = 0;
+        }
+
+        try
+        {
+            String sizeStr = props.getProperty("stageQueueSize", "100");
+            stageQueueSize = Math.max(1, Integer.parseInt(sizeStr));
+        }
+        catch(NumberFormatException nfe)
+        {
+            LechLogger.error("Caught number format exception parsing stage queue size, defaulting to 100", nfe);
+            stageQueueSize = 100;
+        }
     }
 
     private List parsePropCommaSeparated(String str)
@@ -317,17 +587,26 @@ public class SpiderConfig implements Serializable
 
     public boolean isInteresting(URL u)
     {
-        return matchURL(u, interestingURLSubstrings);
+        return matchURL(u.toExternalForm(), interestingURLSubstrings);
+    }
+
+    public boolean isInteresting(CanonicalURL u)
+    {
+        return matchURL(u.toExternalForm(), interestingURLSubstrings);
     }
 
     public boolean isBoring(URL u)
     {
-        return matchURL(u, boringURLSubstrings);
+        return matchURL(u.toExternalForm(), boringURLSubstrings);
+    }
+
+    public boolean isBoring(CanonicalURL u)
+    {
+        return matchURL(u.toExternalForm(), boringURLSubstrings);
     }
 
-    private boolean matchURL(URL u, List substrings)
+    private boolean matchURL(String str, List substrings)
     {
-        String str = u.toExternalForm();
         for(Iterator i = substrings.iterator(); i.hasNext(); )
         {
             String substr = (String) i.next();
@@ -409,6 +688,460 @@ public class SpiderConfig implements Serializable
         return checkpointInterval;
     }
 
+    /**
+     * Set the minimum time in milliseconds between downloads from the same
+     * host, once its burst allowance is used up. 0 means no limit.
+     */
+    public void setHostDelay(long hostDelay)
+    {
+        this.hostDelay = hostDelay;
+    }
+
+    public long getHostDelay()
+    {
+        return hostDelay;
+    }
+
+    /**
+     * Set how many downloads from one host may start back to back before
+     * the host delay applies (the size of the host's token bucket).
+     */
+    public void setHostBurst(int hostBurst)
+    {
+        this.hostBurst = hostBurst;
+    }
+
+    public int getHostBurst()
+    {
+        return hostBurst;
+    }
+
+    /**
+     * Set how many queued URLs each host keeps in memory per priority tier
+     * before spilling to disk, with up to half as many again buffered for
+     * the next spill in breadth-first mode. This is a per-host limit, so
+     * the frontier's memory still grows with the number of hosts. 0 keeps
+     * everything in memory.
+     */
+    public void setHostFrontierMemoryLimit(int hostFrontierMemoryLimit)
+    {
+        this.hostFrontierMemoryLimit = hostFrontierMemoryLimit;
+    }
+
+    public int getHostFrontierMemoryLimit()
+    {
+        return hostFrontierMemoryLimit;
+    }
+
+    /**
+     * Set how the spider remembers which URLs it has seen: "exact" keeps
+     * a 64-bit fingerprint per URL, "bloom" uses a scalable Bloom filter
+     * with the seen false-positive rate.
+     */
+    public void setSeenURLSet(String seenURLSet)
+    {
+        this.seenURLSet = seenURLSet;
+    }
+
+    public String getSeenURLSet()
+    {
+        return seenURLSet;
+    }
+
+    public void setSeenFalsePositiveRate(double seenFalsePositiveRate)
+    {
+        this.seenFalsePositiveRate = seenFalsePositiveRate;
+    }
+
+    public double getSeenFalsePositiveRate()
+    {
+        return seenFalsePositiveRate;
+    }
+
+    /**
+     * Set how pages are fetched: "urlconnection" for a blocking
+     * HttpURLConnection per request, or "httpclient" for the asynchronous
+     * java.net.http client, which reuses connections and speaks HTTP/2.
+     */
+    public void setFetchEngine(String fetchEngine)
+    {
+        this.fetchEngine = fetchEngine;
+    }
+
+    public String getFetchEngine()
+    {
+        return fetchEngine;
+    }
+
+    /**
+     * Set the largest HTML or XML body in bytes kept in memory for parsing
+     * while it's streamed to disk. Bigger pages are read back from disk.
+     */
+    public void setParseBufferSize(int parseBufferSize)
+    {
+        this.parseBufferSize = parseBufferSize;
+    }
+
+    public int getParseBufferSize()
+    {
+        return parseBufferSize;
+    }
+
+    /**
+     * Set whether each download runs as its own task on a virtual thread
+     * (falling back to a pool of platform threads on JVMs without them),
+     * instead of on spiderThreads long-lived threads.
+     */
+    public void setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean useVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * Set the maximum number of downloads in flight at once when using
+     * virtual threads.
+     */
+    public void setMaxConcurrentFetches(int maxConcurrentFetches)
+    {
+        this.maxConcurrentFetches = maxConcurrentFetches;
+    }
+
+    public int getMaxConcurrentFetches()
+    {
+        return maxConcurrentFetches;
+    }
+
+    /**
+     * Set the maximum number of downloads from one host in progress at
+     * once. 0 means no limit.
+     */
+    public void setMaxFetchesPerHost(int maxFetchesPerHost)
+    {
+        this.maxFetchesPerHost = maxFetchesPerHost;
+    }
+
+    public int getMaxFetchesPerHost()
+    {
+        return maxFetchesPerHost;
+    }
+
+    /**
+     * Set the maximum number of connections to one host in use at once,
+     * shared by all threads. 0 means no limit. How many are kept open idle
+     * is up to the JVM's http.maxConnections, 5 unless set at launch.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost)
+    {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getMaxConnectionsPerHost()
+    {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Set which attributes of which tags hold links, as a Map of tag name
+     * to a List of attribute names.
+     */
+    public void setLinkAttributes(Map linkAttributes)
+    {
+        this.linkAttributes = linkAttributes;
+    }
+
+    public Map getLinkAttributes()
+    {
+        return linkAttributes;
+    }
+
+    /**
+     * Set how many resolved links the HTML parser remembers across pages,
+     * so links repeated on every page aren't parsed again. 0 turns the
+     * cache off.
+     */
+    public void setResolveCacheSize(int resolveCacheSize)
+    {
+        this.resolveCacheSize = resolveCacheSize;
+    }
+
+    public int getResolveCacheSize()
+    {
+        return resolveCacheSize;
+    }
+
+    /**
+     * Set whether pages are parsed while they download, queueing each link
+     * as soon as it's found, instead of once the whole page is in.
+     */
+    public void setStreamingParse(boolean streamingParse)
+    {
+        this.streamingParse = streamingParse;
+    }
+
+    public boolean useStreamingParse()
+    {
+        return streamingParse;
+    }
+
+    /**
+     * Set whether to remember the ETag and Last-Modified of saved files,
+     * and on refreshing them ask the server to send them only if they've
+     * changed.
+     */
+    public void setConditionalGet(boolean conditionalGet)
+    {
+        this.conditionalGet = conditionalGet;
+    }
+
+    public boolean useConditionalGet()
+    {
+        return conditionalGet;
+    }
+
+    /**
+     * Set whether to ask servers for gzip or deflate compressed bodies.
+     * They're decompressed as they arrive.
+     */
+    public void setCompression(boolean compression)
+    {
+        this.compression = compression;
+    }
+
+    public boolean useCompression()
+    {
+        return compression;
+    }
+
+    /**
+     * Set whether bodies sent gzipped are saved gzipped, as they came,
+     * rather than decompressed. Saved pages are decompressed again when
+     * they're parsed.
+     */
+    public void setStoreCompressed(boolean storeCompressed)
+    {
+        this.storeCompressed = storeCompressed;
+    }
+
+    public boolean storeCompressed()
+    {
+        return storeCompressed;
+    }
+
+    /**
+     * Set whether to keep an index of saved files in memory, rather than
+     * looking each URL's file up on disk. It's kept under the save root
+     * between crawls.
+     */
+    public void setManifest(boolean manifest)
+    {
+        this.manifest = manifest;
+    }
+
+    public boolean useManifest()
+    {
+        return manifest;
+    }
+
+    /**
+     * Set how downloads are saved: "files" for a file per URL under the
+     * save root, or "warc" to append them to WARC segment files there.
+     */
+    public void setStorage(String storage)
+    {
+        this.storage = storage;
+    }
+
+    public String getStorage()
+    {
+        return storage;
+    }
+
+    /**
+     * Set the size in bytes a WARC segment file grows to before a new one
+     * is started.
+     */
+    public void setWarcSegmentSize(long warcSegmentSize)
+    {
+        this.warcSegmentSize = warcSegmentSize;
+    }
+
+    public long getWarcSegmentSize()
+    {
+        return warcSegmentSize;
+    }
+
+    /**
+     * Set whether bodies identical to one already saved are stored only
+     * once. Saved files are then hard links to a single copy kept by
+     * digest, so mustn't be edited in place. In a WARC they're revisit
+     * records, referring to the first.
+     */
+    public void setDedup(boolean dedup)
+    {
+        this.dedup = dedup;
+    }
+
+    public boolean useDedup()
+    {
+        return dedup;
+    }
+
+    /**
+     * Set whether downloads are written to disk by writer threads, so
+     * fetch threads only wait for the disk when the writers fall behind.
+     */
+    public void setWriteBehind(boolean writeBehind)
+    {
+        this.writeBehind = writeBehind;
+    }
+
+    public boolean useWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    public void setWriterThreads(int writerThreads)
+    {
+        this.writerThreads = writerThreads;
+    }
+
+    public int getWriterThreads()
+    {
+        return writerThreads;
+    }
+
+    /**
+     * Set how many buffers may be waiting for each writer thread before
+     * the threads filling them wait too.
+     */
+    public void setWriterQueueSize(int writerQueueSize)
+    {
+        this.writerQueueSize = writerQueueSize;
+    }
+
+    public int getWriterQueueSize()
+    {
+        return writerQueueSize;
+    }
+
+    /**
+     * Set the size in bytes of the buffers handed to writer threads.
+     */
+    public void setWriterBufferSize(int writerBufferSize)
+    {
+        this.writerBufferSize = writerBufferSize;
+    }
+
+    public int getWriterBufferSize()
+    {
+        return writerBufferSize;
+    }
+
+    /**
+     * Set whether writer buffers are allocated outside the heap, which
+     * saves the channel copying them before writing.
+     */
+    public void setDirectBuffers(boolean directBuffers)
+    {
+        this.directBuffers = directBuffers;
+    }
+
+    public boolean useDirectBuffers()
+    {
+        return directBuffers;
+    }
+
+    /**
+     * Set when written files are forced to disk: "never", leaving it to
+     * the operating system, or "always", before each file is closed.
+     */
+    public void setFsync(String fsync)
+    {
+        this.fsync = fsync;
+    }
+
+    public String getFsync()
+    {
+        return fsync;
+    }
+
+    /**
+     * Set whether bodies that aren't parsed, decoded or digested are
+     * handed to the fetch engine to write to disk, rather than copied
+     * through the spider a buffer at a time. Only the httpclient engine
+     * avoids copying them on the heap; urlconnection still reads them
+     * from a stream.
+     */
+    public void setDirectTransfer(boolean directTransfer)
+    {
+        this.directTransfer = directTransfer;
+    }
+
+    public boolean useDirectTransfer()
+    {
+        return directTransfer;
+    }
+
+    /**
+     * Set whether downloads go through a pipeline of stages: fetch threads
+     * (spiderThreads, or virtual threads) hand pages to a pool of I/O
+     * threads, which move them into place and read back cached pages,
+     * then to a pool of parse threads. Otherwise each thread does all
+     * three for one page at a time.
+     */
+    public void setPipeline(boolean pipeline)
+    {
+        this.pipeline = pipeline;
+    }
+
+    public boolean usePipeline()
+    {
+        return pipeline;
+    }
+
+    public void setIOThreads(int ioThreads)
+    {
+        this.ioThreads = ioThreads;
+    }
+
+    public int getIOThreads()
+    {
+        return ioThreads;
+    }
+
+    /**
+     * Set the number of parse threads in the pipeline. 0 means one per
+     * processor.
+     */
+    public void setParseThreads(int parseThreads)
+    {
+        this.parseThreads = parseThreads;
+    }
+
+    public int getParseThreads()
+    {
+        return parseThreads > 0 ? parseThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Set how many pages may wait for each pipeline stage before the stage
+     * before it has to wait.
+     */
+    public void setStageQueueSize(int stageQueueSize)
+    {
+        this.stageQueueSize = stageQueueSize;
+    }
+
+    public int getStageQueueSize()
+    {
+        return stageQueueSize;
+    }
+
     public String toString()
     {
         return "depthFirst:\t" + depthFirst
@@ -425,7 +1158,39 @@ public class SpiderConfig implements Serializable
            + "\nbasicAuthUser:\t" + basicAuthUser
            + "\nbasicAuthPassword:\t" + "***"
            + "\nspiderThreads:\t" + spiderThreads
-           + "\ncheckpointInterval:\t" + checkpointInterval;
+           + "\ncheckpointInterval:\t" + checkpointInterval
+           + "\nhostDelay:\t" + hostDelay
+           + "\nhostBurst:\t" + hostBurst
+           + "\nhostFrontierMemoryLimit:\t" + hostFrontierMemoryLimit
+           + "\nseenURLSet:\t" + seenURLSet
+           + "\nseenFalsePositiveRate:\t" + seenFalsePositiveRate
+           + "\nfetchEngine:\t" + fetchEngine
+           + "\nparseBufferSize:\t" + parseBufferSize
+           + "\nvirtualThreads:\t" + virtualThreads
+           + "\nmaxConcurrentFetches:\t" + maxConcurrentFetches
+           + "\nmaxFetchesPerHost:\t" + maxFetchesPerHost
+           + "\nmaxConnectionsPerHost:\t" + maxConnectionsPerHost
+           + "\nlinkAttributes:\t" + fromLinkAttributes(linkAttributes)
+           + "\nresolveCacheSize:\t" + resolveCacheSize
+           + "\nstreamingParse:\t" + streamingParse
+           + "\nconditionalGet:\t" + conditionalGet
+           + "\ncompression:\t" + compression
+           + "\nstoreCompressed:\t" + storeCompressed
+           + "\nmanifest:\t" + manifest
+           + "\nstorage:\t" + storage
+           + "\nwarcSegmentSize:\t" + warcSegmentSize
+           + "\ndedup:\t" + dedup
+           + "\nwriteBehind:\t" + writeBehind
+           + "\nwriterThreads:\t" + writerThreads
+           + "\nwriterQueueSize:\t" + writerQueueSize
+           + "\nwriterBufferSize:\t" + writerBufferSize
+           + "\ndirectBuffers:\t" + directBuffers
+           + "\nfsync:\t" + fsync
+           + "\ndirectTransfer:\t" + directTransfer
+           + "\npipeline:\t" + pipeline
+           + "\nioThreads:\t" + ioThreads
+           + "\nparseThreads:\t" + parseThreads
+           + "\nstageQueueSize:\t" + stageQueueSize;
     }
 
     private Set parseSet(String str)
@@ -441,6 +1206,58 @@ public class SpiderConfig implements Serializable
         return result;
     }
 
+    /**
+     * Parse "tag:attr,tag:attr,..." into a Map of tag to List of
+     * attributes, all lower case.
+     */
+    private Map parseLinkAttributes(String str)
+    {
+        LechLogger.debug("parseLinkAttributes(" + str + ")");
+        Map result = new LinkedHashMap();
+        StringTokenizer sTok = new StringTokenizer(str, ",");
+        while(sTok.hasMoreTokens())
+        {
+            String tok = sTok.nextToken().trim();
+            int colon = tok.indexOf(':');
+            if(colon <= 0 || colon == tok.length() - 1)
+            {
+                LechLogger.warn("Ignoring bad link attribute '" + tok + "', expected tag:attribute");
+                continue;
+            }
+            String tag = tok.substring(0, colon).trim().toLowerCase();
+            String attr = tok.substring(colon + 1).trim().toLowerCase();
+            List attrs = (List) result.get(tag);
+            if(attrs == null)
+            {
+                attrs = new ArrayList();
+                result.put(tag, attrs);
+            }
+            if(!attrs.contains(attr))
+            {
+                attrs.add(attr);
+            }
+        }
+        return result;
+    }
+
+    private String fromLinkAttributes(Map m)
+    {
+        StringBuffer sb = new StringBuffer();
+        for(Iterator i = m.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry e = (Map.Entry) i.next();
+            for(Iterator j = ((List) e.getValue()).iterator(); j.hasNext(); )
+            {
+                if(sb.length() > 0)
+                {
+                    sb.append(",");
+                }
+                sb.append(e.getKey()).append(":").append(j.next());
+            }
+        }
+        return sb.toString();
+    }
+
     private String fromSet(Set s)
     {
         StringBuffer sb = new StringBuffer();
@@ -0,0 +1,292 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import weblech.ui.LechLogger;
+
+/**
+ * A FIFO or LIFO queue of URLToDownloads that keeps at most a fixed number
+ * of entries on the heap and spills the rest to append-only segment files,
+ * which are read back sequentially, one segment per batch.
+ *
+ * In FIFO mode the queue is a head and a tail in memory with the segments
+ * in between: new URLs go to the tail once anything has been spilled, and
+ * a full tail is written out as a new segment. In LIFO mode new URLs are
+ * pushed onto the head, the oldest part of an overfull head is written out
+ * as a segment, and segments are read back most recent first.
+ *
+ * Thread safety: Not thread-safe, callers must synchronize.
+ */
+public class SpillingURLQueue implements Serializable
+{
+    private static final String SEGMENT_PREFIX = "frontier";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final boolean lifo;
+    private final int memoryLimit;
+    private final int segmentSize;
+    private final File spillDirectory;
+
+    private final ArrayDeque head;
+    private final ArrayDeque tail;
+    /** Spilled Segments, oldest first. */
+    private final ArrayDeque segments;
+    private int size;
+    /** URLs lost from unreadable segments since the last takeLost(). */
+    private int lost;
+
+    /**
+     * @param memoryLimit Maximum URLs this queue holds in its head, or 0
+     * for no limit. In FIFO mode up to half as many again may wait in the
+     * tail before being spilled.
+     */
+    public SpillingURLQueue(boolean lifo, int memoryLimit, File spillDirectory)
+    {
+        this.lifo = lifo;
+        this.memoryLimit = memoryLimit;
+        this.segmentSize = Math.max(1, memoryLimit / 2);
+        this.spillDirectory = spillDirectory;
+        head = new ArrayDeque();
+        tail = new ArrayDeque();
+        segments = new ArrayDeque();
+        size = 0;
+        lost = 0;
+    }
+
+    /**
+     * Delete segment files left in spillDirectory by an earlier run. Only
+     * call this before any queue spilling there has been created.
+     */
+    public static void deleteSegments(File spillDirectory)
+    {
+        File[] files = spillDirectory.listFiles();
+        if(files == null)
+        {
+            return;
+        }
+        for(int i = 0; i < files.length; i++)
+        {
+            String name = files[i].getName();
+            if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && !files[i].delete())
+            {
+                LechLogger.warn("Couldn't delete stale frontier segment " + files[i]);
+            }
+        }
+    }
+
+    public void add(URLToDownload url)
+    {
+        size++;
+        if(lifo)
+        {
+            head.addFirst(url);
+            if(memoryLimit > 0 && head.size() > memoryLimit)
+            {
+                // Oldest entries are at the end of the head
+                ArrayDeque oldest = new ArrayDeque();
+                while(oldest.size() < segmentSize)
+                {
+                    oldest.addLast(head.pollLast());
+                }
+                spill(oldest, head, false);
+            }
+        }
+        else if(segments.isEmpty() && tail.isEmpty() && (memoryLimit == 0 || head.size() < memoryLimit))
+        {
+            head.addLast(url);
+        }
+        else
+        {
+            tail.addLast(url);
+            if(tail.size() >= segmentSize)
+            {
+                spill(tail, tail, true);
+            }
+        }
+    }
+
+    /**
+     * Write urls out as a new segment. If that fails they're put back on
+     * fallback so nothing is lost, just kept in memory.
+     */
+    private void spill(ArrayDeque urls, ArrayDeque fallback, boolean fallbackAtEnd)
+    {
+        try
+        {
+            spillDirectory.mkdirs();
+            File f = File.createTempFile(SEGMENT_PREFIX, SEGMENT_SUFFIX, spillDirectory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+            out.writeInt(urls.size());
+            // Written oldest first, so read-back can re-add in order
+            for(Iterator i = urls.iterator(); i.hasNext(); )
+            {
+                URLToDownload u2d = (URLToDownload) i.next();
+                out.writeUTF(u2d.getURL().toExternalForm());
+                out.writeUTF(u2d.getReferer() == null ? "" : u2d.getReferer().toExternalForm());
+                out.writeInt(u2d.getDepth());
+            }
+            out.close();
+            segments.addLast(new Segment(f, urls.size()));
+            urls.clear();
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception spilling frontier, keeping URLs in memory: " + ioe.getMessage(), ioe);
+            if(urls != fallback)
+            {
+                while(!urls.isEmpty())
+                {
+                    if(fallbackAtEnd)
+                    {
+                        fallback.addLast(urls.pollFirst());
+                    }
+                    else
+                    {
+                        fallback.addLast(urls.pollLast());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the next segment back into the head and delete it. URLs that
+     * can't be read are dropped and counted for takeLost().
+     */
+    private void unspill()
+    {
+        Segment seg = (Segment) (lifo ? segments.pollLast() : segments.pollFirst());
+        File f = seg.file;
+        int read = 0;
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try
+            {
+                int count = in.readInt();
+                for(int i = 0; i < count; i++)
+                {
+                    CanonicalURL u = new CanonicalURL(in.readUTF());
+                    String refStr = in.readUTF();
+                    CanonicalURL referer = refStr.length() == 0 ? null : new CanonicalURL(refStr);
+                    URLToDownload u2d = new URLToDownload(u, referer, in.readInt());
+                    read++;
+                    if(lifo)
+                    {
+                        head.addFirst(u2d);
+                    }
+                    else
+                    {
+                        head.addLast(u2d);
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception reading frontier segment " + f + ", " + (seg.count - read) + " URLs lost: " + ioe.getMessage(), ioe);
+            size -= seg.count - read;
+            lost += seg.count - read;
+        }
+        finally
+        {
+            if(!f.delete())
+            {
+                LechLogger.warn("Couldn't delete frontier segment " + f);
+            }
+        }
+    }
+
+    /**
+     * Take the next URL, or null if the queue is empty.
+     */
+    public URLToDownload poll()
+    {
+        while(head.isEmpty())
+        {
+            if(!segments.isEmpty())
+            {
+                unspill();
+            }
+            else if(!tail.isEmpty())
+            {
+                head.addAll(tail);
+                tail.clear();
+            }
+            else
+            {
+                lost += size;
+                size = 0;
+                return null;
+            }
+        }
+        size--;
+        return (URLToDownload) head.pollFirst();
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * The number of URLs dropped because their segment couldn't be read
+     * back since the last call, so owners keeping their own counts can
+     * take them off.
+     */
+    public int takeLost()
+    {
+        int n = lost;
+        lost = 0;
+        return n;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /** A segment file and the number of URLs in it. */
+    private static class Segment implements Serializable
+    {
+        final File file;
+        final int count;
+
+        Segment(File file, int count)
+        {
+            this.file = file;
+            this.count = count;
+        }
+    }
+}
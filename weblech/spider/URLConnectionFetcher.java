@@ -0,0 +1,224 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import weblech.ui.LechLogger;
+
+/**
+ * A Fetcher using a blocking HttpURLConnection per request. The request is
+ * made on the calling thread, so the returned future is already complete.
+ * Connections are kept alive by HttpURLConnection's own cache, which the
+ * ConnectionPool bounds and keeps fed by draining every response.
+ */
+public class URLConnectionFetcher implements Fetcher
+{
+    private final ConnectionPool pool;
+
+    public URLConnectionFetcher()
+    {
+        this(new ConnectionPool(0));
+    }
+
+    public URLConnectionFetcher(ConnectionPool pool)
+    {
+        this.pool = pool;
+    }
+
+    public CompletableFuture fetch(URLToDownload url, Map requestHeaders)
+    {
+        CompletableFuture result = new CompletableFuture();
+        try
+        {
+            result.complete(open(url, requestHeaders));
+        }
+        catch(IOException ioe)
+        {
+            result.completeExceptionally(ioe);
+        }
+        return result;
+    }
+
+    private FetchResponse open(URLToDownload url, Map requestHeaders) throws IOException
+    {
+        String key = ConnectionPool.key(url.getURL());
+        pool.acquire(key);
+        try
+        {
+            LechLogger.debug("Creating HTTP connection to " + url.getURL());
+            HttpURLConnection conn = (HttpURLConnection) url.getURL().toURL().openConnection();
+            for(Iterator i = requestHeaders.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry e = (Map.Entry) i.next();
+                conn.setRequestProperty((String) e.getKey(), (String) e.getValue());
+            }
+            conn.setUseCaches(false);
+
+            LechLogger.debug("Opening URL");
+            conn.connect();
+            conn.getResponseCode();
+            return new Response(conn, key);
+        }
+        catch(IOException ioe)
+        {
+            pool.release(key);
+            throw ioe;
+        }
+        catch(RuntimeException re)
+        {
+            pool.release(key);
+            throw re;
+        }
+    }
+
+    private class Response implements FetchResponse
+    {
+        private final HttpURLConnection conn;
+        private final String key;
+        private InputStream body;
+        private boolean closed;
+
+        Response(HttpURLConnection conn, String key)
+        {
+            this.conn = conn;
+            this.key = key;
+        }
+
+        public int getStatusCode()
+        {
+            try
+            {
+                return conn.getResponseCode();
+            }
+            catch(IOException ioe)
+            {
+                return -1;
+            }
+        }
+
+        public String getStatusLine()
+        {
+            return conn.getHeaderField(0);
+        }
+
+        public String getHeader(String name)
+        {
+            return conn.getHeaderField(name);
+        }
+
+        public Map getHeaders()
+        {
+            Map headers = new LinkedHashMap(conn.getHeaderFields());
+            // The status line is keyed on null
+            headers.remove(null);
+            return headers;
+        }
+
+        public String getContentType()
+        {
+            return conn.getContentType();
+        }
+
+        public long getContentLength()
+        {
+            return conn.getContentLengthLong();
+        }
+
+        public InputStream getBody() throws IOException
+        {
+            if(body == null)
+            {
+                body = conn.getInputStream();
+            }
+            return body;
+        }
+
+        /**
+         * HttpURLConnection only gives a stream, so this is the file
+         * channel reading it through a channel wrapping the stream. That
+         * still copies every byte through a buffer on the heap, the same
+         * as the stream path; it only saves the spider's own copy loop.
+         */
+        public long transferBody(FileChannel out) throws IOException
+        {
+            ReadableByteChannel in = Channels.newChannel(getBody());
+            long position = 0;
+            while(true)
+            {
+                long n = out.transferFrom(in, position, Long.MAX_VALUE - position);
+                if(n <= 0)
+                {
+                    return position;
+                }
+                position += n;
+            }
+        }
+
+        /**
+         * Read what's left of the body, or of the error page if it's an
+         * error, so the connection can be reused.
+         */
+        public void close()
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+            InputStream rest = body;
+            if(rest == null)
+            {
+                if(getStatusCode() >= 400)
+                {
+                    rest = conn.getErrorStream();
+                }
+                else
+                {
+                    try
+                    {
+                        rest = conn.getInputStream();
+                    }
+                    catch(IOException ioe)
+                    {
+                        rest = conn.getErrorStream();
+                    }
+                }
+            }
+            pool.drain(rest);
+            pool.release(key);
+        }
+    }
+}
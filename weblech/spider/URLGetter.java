@@ -25,104 +25,406 @@
 
 package weblech.spider;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.Authenticator;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import weblech.ui.LechLogger;
 
 public class URLGetter
 {
-    private int failureCount = 0;
+    /** Size of the buffer bodies are copied through. */
+    private static final int BUFFER_SIZE = 8192;
+
+    private final AtomicInteger failureCount = new AtomicInteger();
 
     private final SpiderConfig config;
 
+    private final Fetcher fetcher;
+
+    /** Validators of saved files, for conditional requests, or null. */
+    private final MetadataStore metadata;
+
+    /** Where downloads are saved. */
+    private final Storage storage;
+
+    /** Writes bodies behind the download, or null to write them as they come. */
+    private final DiskWriter diskWriter;
+
+    /** Told about each body as it starts to download. */
+    public interface BodyListener
+    {
+        /**
+         * @return A stream the body will be copied to as it arrives, and
+         *         closed once it's all there, or null.
+         */
+        OutputStream bodyStarted(URLToDownload url, String contentType);
+    }
+
     public URLGetter(SpiderConfig config)
+    {
+        this(config, createFetcher(config));
+    }
+
+    public URLGetter(SpiderConfig config, Fetcher fetcher)
+    {
+        this(config, fetcher, null);
+    }
+
+    /**
+     * @param metadata Validators of saved files. If given, saved files are
+     *                 only downloaded again if the server says they've
+     *                 changed.
+     */
+    public URLGetter(SpiderConfig config, Fetcher fetcher, MetadataStore metadata)
+    {
+        this(config, fetcher, metadata, new FileStorage(config, null));
+    }
+
+    /**
+     * @param storage Where downloads are saved, and saved copies found.
+     */
+    public URLGetter(SpiderConfig config, Fetcher fetcher, MetadataStore metadata, Storage storage)
+    {
+        this(config, fetcher, metadata, storage, null);
+    }
+
+    /**
+     * @param diskWriter Writes bodies to disk behind the download, or null.
+     *                   If given, the URLObjects returned may still be
+     *                   being written, see URLObject.awaitWrite().
+     */
+    public URLGetter(SpiderConfig config, Fetcher fetcher, MetadataStore metadata, Storage storage, DiskWriter diskWriter)
     {
         LechLogger.debug("URLGetter()");
         this.config = config;
+        this.fetcher = fetcher;
+        this.metadata = metadata;
+        this.storage = storage;
+        this.diskWriter = diskWriter;
 
         Authenticator.setDefault(new DumbAuthenticator(config.getBasicAuthUser(), config.getBasicAuthPassword()));
     }
 
+    /**
+     * Create the Fetcher named by the config's fetch engine.
+     */
+    public static Fetcher createFetcher(SpiderConfig config)
+    {
+        return createFetcher(config, new ConnectionPool(config));
+    }
+
+    /**
+     * @param pool Connections the Fetcher is to keep to each host.
+     */
+    public static Fetcher createFetcher(SpiderConfig config, ConnectionPool pool)
+    {
+        if("httpclient".equalsIgnoreCase(config.getFetchEngine()))
+        {
+            return new HttpClientFetcher(config, pool);
+        }
+        else
+        {
+            return new URLConnectionFetcher(pool);
+        }
+    }
+
     public URLObject getURL(URLToDownload url)
+    {
+        return getURL(url, true);
+    }
+
+    /**
+     * @param commit Whether to move the download into place before
+     *               returning. If not, the URLObject returned is pending
+     *               and the caller must commit() it.
+     */
+    public URLObject getURL(URLToDownload url, boolean commit)
+    {
+        return getURL(url, commit, null);
+    }
+
+    /**
+     * @param listener Told when the body starts to download, or null.
+     */
+    public URLObject getURL(URLToDownload url, boolean commit, BodyListener listener)
     {
         LechLogger.debug("getURL(" + url + ")");
 
-        if(failureCount > 10)
+        if(failureCount.get() > 10)
         {
             LechLogger.warn("Lots of failures recently, waiting 5 seconds before attempting download");
             try { Thread.sleep(5 * 1000); } catch(InterruptedException e) { };
-            failureCount = 0;
+            failureCount.set(0);
         }
 
-        URL requestedURL = url.getURL();
-        URL referer = url.getReferer();
+        CanonicalURL requestedURL = url.getURL();
+        CanonicalURL referer = url.getReferer();
 
-        try
+        Map requestHeaders = new LinkedHashMap();
+        if(referer != null)
         {
-            LechLogger.debug("Creating HTTP connection to " + requestedURL);
-            HttpURLConnection conn = (HttpURLConnection) requestedURL.openConnection();
-            if(referer != null)
+            LechLogger.debug("Setting Referer header to " + referer);
+            requestHeaders.put("Referer", referer.toExternalForm());
+        }
+
+        if(config.getUserAgent() != null)
+        {
+            LechLogger.debug("Setting User-Agent to " + config.getUserAgent());
+            requestHeaders.put("User-Agent", config.getUserAgent());
+        }
+
+        if(config.useCompression())
+        {
+            requestHeaders.put("Accept-Encoding", "gzip, deflate");
+        }
+
+        // Only look the saved copy up if there are validators for it
+        MetadataStore.Entry saved = metadata == null ? null : metadata.get(requestedURL);
+        URLObject savedCopy = saved == null ? null : storage.lookup(requestedURL, saved.getContentType());
+        if(savedCopy != null && !savedCopy.existsOnDisk())
+        {
+            saved = null;
+        }
+        if(saved != null)
+        {
+            if(saved.getETag() != null)
             {
-                LechLogger.debug("Setting Referer header to " + referer);
-                conn.setRequestProperty("Referer", referer.toExternalForm());
+                LechLogger.debug("Setting If-None-Match to " + saved.getETag());
+                requestHeaders.put("If-None-Match", saved.getETag());
             }
-
-            if(config.getUserAgent() != null)
+            if(saved.getLastModified() != null)
             {
-                LechLogger.debug("Setting User-Agent to " + config.getUserAgent());
-                conn.setRequestProperty("User-Agent", config.getUserAgent());
+                LechLogger.debug("Setting If-Modified-Since to " + saved.getLastModified());
+                requestHeaders.put("If-Modified-Since", saved.getLastModified());
             }
+        }
 
-            conn.setUseCaches(false);
-
-            LechLogger.debug("Opening URL");
+        FetchResponse response = null;
+        try
+        {
             long startTime = System.currentTimeMillis();
-            conn.connect();
-
-            String resp = conn.getResponseMessage();
-            LechLogger.debug("Remote server response: " + resp);
+            response = await(fetcher.fetch(url, requestHeaders));
 
-            String respStr = conn.getHeaderField(0);
+            String respStr = response.getStatusLine();
             LechLogger.info("Server response: " + respStr);
 
-            for(int i = 1; ; i++)
+            for(Iterator i = response.getHeaders().entrySet().iterator(); i.hasNext(); )
             {
-                String key = conn.getHeaderFieldKey(i);
-                if(key == null)
+                Map.Entry e = (Map.Entry) i.next();
+                List values = (List) e.getValue();
+                for(Iterator j = values.iterator(); j.hasNext(); )
                 {
-                    break;
+                    LechLogger.debug("Received header " + e.getKey() + ": " + j.next());
                 }
-                String value = conn.getHeaderField(key);
-                LechLogger.debug("Received header " + key + ": " + value);
             }
 
-            LechLogger.debug("Getting buffered input stream from remote connection");
-            BufferedInputStream remoteBIS = new BufferedInputStream(conn.getInputStream());
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(10240);
-            byte[] buf = new byte[1024];
-            int bytesRead = 0;
-            while(bytesRead >= 0)
+            if(response.getStatusCode() >= 400)
             {
-                baos.write(buf, 0, bytesRead);
-                bytesRead = remoteBIS.read(buf);
+                LechLogger.warn("File not found: " + requestedURL + " (" + respStr + ")");
+                return null;
             }
 
-            byte[] content = baos.toByteArray();
-            long timeTaken = System.currentTimeMillis() - startTime;
-            if(timeTaken < 100) timeTaken = 500;
+            if(response.getStatusCode() == 304 && saved != null)
+            {
+                LechLogger.info("Not modified, using saved copy of " + requestedURL);
+                return savedCopy;
+            }
 
-            int bytesPerSec = (int) ((double) content.length / ((double)timeTaken / 1000.0));
-            LechLogger.info("Downloaded " + content.length + " bytes, " + bytesPerSec + " bytes/sec");
-            if(content.length < conn.getContentLength())
+            // Stream the body to a temporary file, keeping a copy in memory
+            // only of pages we'll parse
+            File temp = storage.createTempFile(requestedURL);
+            String contentType = response.getContentType();
+            OutputStream bodyCopy = listener == null ? null : listener.bodyStarted(url, contentType);
+            ByteArrayOutputStream parseBuffer = null;
+            if(bodyCopy == null && URLObject.isParseable(contentType))
             {
-                LechLogger.warn("Didn't download full content for URL: " + url);
-                failureCount++;
-                return null;
+                parseBuffer = new ByteArrayOutputStream(10240);
+            }
+
+            String encoding = contentEncoding(response);
+            // Only gzip is worth keeping compressed, it's what .gz files are
+            boolean keepCompressed = config.storeCompressed() && "gzip".equals(encoding);
+
+            // Nothing needs to see the bodies of other types on the way to
+            // disk, so they're handed to the engine to write straight out
+            boolean transfer = config.useDirectTransfer() && diskWriter == null && bodyCopy == null
+                && encoding == null && !config.useDedup() && !URLObject.isParseable(contentType);
+
+            long bytesRead = 0;
+            long bytesDecoded = 0;
+            boolean keepTemp = false;
+            DiskWriter.Output behind = null;
+            try
+            {
+                MessageDigest digest = null;
+                if(transfer)
+                {
+                    LechLogger.debug("Transferring body from remote connection to " + temp);
+                    FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    try
+                    {
+                        bytesRead = response.transferBody(out);
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                    bytesDecoded = bytesRead;
+                }
+                else
+                {
+                    LechLogger.debug("Streaming body from remote connection to " + temp);
+                    CountingInputStream wire = new CountingInputStream(response.getBody());
+                    OutputStream out;
+                    if(diskWriter != null)
+                    {
+                        behind = diskWriter.open(temp);
+                        out = behind;
+                    }
+                    else
+                    {
+                        out = new FileOutputStream(temp);
+                    }
+                    if(config.useDedup())
+                    {
+                        // Digest what's saved as it's saved, not in another pass
+                        digest = Dedup.newDigest();
+                        out = new DigestOutputStream(out, digest);
+                    }
+                    InputStream remote = null;
+                    try
+                    {
+                        InputStream raw = keepCompressed ? new TeeInputStream(wire, out) : wire;
+                        remote = decode(raw, encoding);
+                        byte[] buf = new byte[BUFFER_SIZE];
+                        int n;
+                        while((n = remote.read(buf)) >= 0)
+                        {
+                            if(!keepCompressed)
+                            {
+                                out.write(buf, 0, n);
+                            }
+                            bytesDecoded += n;
+                            if(bodyCopy != null)
+                            {
+                                bodyCopy.write(buf, 0, n);
+                            }
+                            if(parseBuffer != null)
+                            {
+                                if(parseBuffer.size() + n <= config.getParseBufferSize())
+                                {
+                                    parseBuffer.write(buf, 0, n);
+                                }
+                                else
+                                {
+                                    // Too big to keep, parse it from the file
+                                    parseBuffer = null;
+                                }
+                            }
+                        }
+                        if(keepCompressed)
+                        {
+                            // Save anything after the end of the gzip data too
+                            while(raw.read(buf) >= 0)
+                            {
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        if(remote != null && remote != wire)
+                        {
+                            // Frees the decoder
+                            remote.close();
+                        }
+                        out.close();
+                        if(bodyCopy != null)
+                        {
+                            bodyCopy.close();
+                        }
+                    }
+                    bytesRead = wire.getCount();
+                }
+
+                long timeTaken = System.currentTimeMillis() - startTime;
+                if(timeTaken < 100) timeTaken = 500;
+
+                int bytesPerSec = (int) ((double) bytesRead / ((double)timeTaken / 1000.0));
+                if(encoding != null)
+                {
+                    LechLogger.info("Downloaded " + bytesRead + " bytes " + encoding + " (" + bytesDecoded + " bytes decoded), " + bytesPerSec + " bytes/sec");
+                }
+                else
+                {
+                    LechLogger.info("Downloaded " + bytesRead + " bytes, " + bytesPerSec + " bytes/sec");
+                }
+                if(bytesRead < response.getContentLength())
+                {
+                    LechLogger.warn("Didn't download full content for URL: " + url);
+                    failureCount.incrementAndGet();
+                    return null;
+                }
+
+                byte[] content = parseBuffer == null ? null : parseBuffer.toByteArray();
+                URLObject obj;
+                if(behind != null)
+                {
+                    obj = URLObject.pending(requestedURL, contentType, content, temp, behind, keepCompressed ? bytesRead : bytesDecoded, config);
+                }
+                else
+                {
+                    obj = URLObject.pending(requestedURL, contentType, content, temp, config);
+                }
+                obj.setValidators(response.getHeader("ETag"), response.getHeader("Last-Modified"));
+                obj.setTransferSize(bytesRead, bytesDecoded);
+                if(digest != null)
+                {
+                    obj.setDigest(Dedup.toHex(digest.digest()));
+                }
+                if(commit)
+                {
+                    storage.store(obj);
+                }
+                else
+                {
+                    keepTemp = true;
+                }
+                return obj;
+            }
+            finally
+            {
+                if(!keepTemp)
+                {
+                    if(behind != null)
+                    {
+                        // Let the writer finish with it first
+                        behind.close();
+                        try
+                        {
+                            behind.await();
+                        }
+                        catch(IOException ioe)
+                        {
+                            // It's going anyway
+                        }
+                    }
+                    temp.delete();
+                }
             }
-            return new URLObject(requestedURL, conn.getContentType(), content, config);
         }
 	catch(FileNotFoundException fnfe) {
 	    LechLogger.warn("File not found: " + fnfe.getMessage());
@@ -131,8 +433,139 @@ public class URLGetter
         catch(IOException ioe)
         {
             LechLogger.warn("Caught IO Exception: " + ioe.getMessage(), ioe);
-            failureCount++;
+            failureCount.incrementAndGet();
             return null;
         }
+        finally
+        {
+            if(response != null)
+            {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * The response's content coding, lower case, or null for none.
+     */
+    private String contentEncoding(FetchResponse response)
+    {
+        String encoding = response.getHeader("Content-Encoding");
+        if(encoding == null)
+        {
+            return null;
+        }
+        encoding = encoding.trim().toLowerCase();
+        if(encoding.length() == 0 || encoding.equals("identity"))
+        {
+            return null;
+        }
+        if(encoding.equals("x-gzip"))
+        {
+            return "gzip";
+        }
+        return encoding;
+    }
+
+    /**
+     * Undo a content coding as the body streams through.
+     */
+    private InputStream decode(InputStream in, String encoding) throws IOException
+    {
+        if(encoding == null)
+        {
+            return in;
+        }
+        if(encoding.equals("gzip"))
+        {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if(encoding.equals("deflate"))
+        {
+            // Meant to be zlib wrapped, but some servers send raw deflate
+            BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+            buffered.mark(2);
+            int b0 = buffered.read();
+            int b1 = buffered.read();
+            buffered.reset();
+            boolean zlib = b0 >= 0 && b1 >= 0 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+            final Inflater inflater = new Inflater(!zlib);
+            return new InflaterInputStream(buffered, inflater, BUFFER_SIZE)
+            {
+                public void close() throws IOException
+                {
+                    super.close();
+                    inflater.end();
+                }
+            };
+        }
+        LechLogger.warn("Unknown content encoding " + encoding + ", saving as is");
+        return in;
+    }
+
+    /** Copies the bytes read through it to an OutputStream. */
+    private static class TeeInputStream extends FilterInputStream
+    {
+        private final OutputStream copy;
+
+        TeeInputStream(InputStream in, OutputStream copy)
+        {
+            super(in);
+            this.copy = copy;
+        }
+
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if(b >= 0)
+            {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if(n > 0)
+            {
+                copy.write(b, off, n);
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            // Read rather than skip, so the bytes are copied
+            byte[] buf = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int read = read(buf, 0, buf.length);
+            return read < 0 ? 0 : read;
+        }
+    }
+
+    /**
+     * Wait for a fetch to complete, unwrapping any IOException it failed
+     * with.
+     */
+    private FetchResponse await(CompletableFuture future) throws IOException
+    {
+        try
+        {
+            return (FetchResponse) future.get();
+        }
+        catch(ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if(cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            throw new IOException("Fetch failed: " + cause);
+        }
+        catch(InterruptedException ie)
+        {
+            future.cancel(true);
+            throw new InterruptedIOException("Interrupted waiting for fetch");
+        }
     }
 }
@@ -26,70 +26,303 @@
 package weblech.spider;
 
 import java.io.*;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.GZIPInputStream;
 
 import weblech.ui.LechLogger;
 
 public class URLObject
 {
-    private final URL sourceURL;
+    private final CanonicalURL sourceURL;
     private final String contentType;
-    private final byte[] content;
+    /** The body, or null if it's only in file. */
+    private byte[] content;
+    /** A view of the body, made when it's first asked for. */
+    private ByteBuffer contentBuffer;
+    /** The file the body was streamed to, or null. */
+    private File file;
+    /** Where the body starts in file, which isn't 0 in a WARC segment. */
+    private long offset;
+    /** Whether file is a temporary file still to be moved into place. */
+    private boolean pending;
+    /** The write of file going on behind the download, or null. */
+    private DiskWriter.Output write;
+    /** Whether the body is saved under the save root. */
+    private boolean onDisk;
+    /** Size and modification time of the saved file, if looked up. */
+    private long size;
+    private long modifiedTime;
+    /** The ETag and Last-Modified headers it was downloaded with, or null. */
+    private String etag;
+    private String lastModified;
+    /** Bytes received for it, and bytes after decoding; 0 if not downloaded. */
+    private long transferredBytes;
+    private long decodedBytes;
+    /** Hex digest of the body as saved, if worked out while downloading. */
+    private String digest;
 
     private final SpiderConfig config;
 
-    public URLObject(URL sourceURL, String contentType, byte[] content, SpiderConfig config)
+    /** URLEncoder.encode() of "?" and "&", which never change. */
+    private static final String ENCODED_QUESTION_MARK = "%3F";
+    private static final String ENCODED_AMPERSAND = "%26";
+
+    /** The name of the file it's saved to, worked out when first needed. */
+    private String fileName;
+
+    public URLObject(CanonicalURL sourceURL, String contentType, byte[] content, SpiderConfig config)
+    {
+        this(sourceURL, contentType, content, null, config);
+    }
+
+    /**
+     * A URL whose body has already been streamed to a file.
+     *
+     * @param content The body if it was also kept in memory, or null to
+     *                read it back from the file when it's needed.
+     */
+    public URLObject(CanonicalURL sourceURL, String contentType, byte[] content, File file, SpiderConfig config)
     {
         this.sourceURL = sourceURL;
         this.contentType = contentType;
         this.content = content;
+        this.file = file;
         this.config = config;
+        this.onDisk = file != null;
+        this.size = file == null ? -1 : file.length();
+    }
+
+    /**
+     * A URL whose body has been streamed to a temporary file, which
+     * commit() will move to its place under the save root.
+     */
+    public static URLObject pending(CanonicalURL sourceURL, String contentType, byte[] content, File tempFile, SpiderConfig config)
+    {
+        URLObject obj = new URLObject(sourceURL, contentType, content, tempFile, config);
+        obj.pending = true;
+        obj.onDisk = false;
+        return obj;
+    }
+
+    /**
+     * A URL whose body is still being written to a temporary file by a
+     * DiskWriter. It's waited for before the file is read or moved.
+     *
+     * @param size Length the file will be once written.
+     */
+    public static URLObject pending(CanonicalURL sourceURL, String contentType, byte[] content, File tempFile, DiskWriter.Output write, long size, SpiderConfig config)
+    {
+        URLObject obj = pending(sourceURL, contentType, content, tempFile, config);
+        obj.write = write;
+        obj.size = size;
+        return obj;
+    }
+
+    public URLObject(CanonicalURL sourceURL, SpiderConfig config)
+    {
+        this(sourceURL, null, config);
     }
 
-    public URLObject(URL sourceURL, SpiderConfig config)
+    /**
+     * A handle on the saved copy of a URL, if there is one. Only the file's
+     * size and modification time are looked up; the body is read when
+     * it's first asked for, if at all.
+     *
+     * @param contentType The type the URL was saved with, or null to guess
+     *                    from its name.
+     */
+    public URLObject(CanonicalURL sourceURL, String contentType, SpiderConfig config)
     {
         this.sourceURL = sourceURL;
         this.config = config;
+        this.contentType = contentType != null ? contentType : guessContentType(sourceURL);
 
+        File f = new File(convertToFileName());
+        BasicFileAttributes attrs = null;
+        try
+        {
+            attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        }
+        catch(IOException ioe)
+        {
+            // Not saved
+        }
+        if(attrs != null && attrs.isRegularFile())
+        {
+            setSaved(f, attrs.size(), attrs.lastModifiedTime().toMillis());
+        }
+        else
+        {
+            setSaved(null, -1, 0);
+        }
+    }
+
+    /**
+     * A handle on the saved copy of a URL whose size and modification time
+     * are already known, so the file system isn't asked at all.
+     *
+     * @param file The saved file, or null if there isn't one.
+     */
+    URLObject(CanonicalURL sourceURL, String contentType, File file, long size, long modifiedTime, SpiderConfig config)
+    {
+        this(sourceURL, contentType, file, 0, size, modifiedTime, config);
+    }
+
+    /**
+     * A handle on a URL saved as part of a bigger file.
+     *
+     * @param offset Where the body starts in file.
+     */
+    URLObject(CanonicalURL sourceURL, String contentType, File file, long offset, long size, long modifiedTime, SpiderConfig config)
+    {
+        this.sourceURL = sourceURL;
+        this.config = config;
+        this.contentType = contentType != null ? contentType : guessContentType(sourceURL);
+        setSaved(file, size, modifiedTime);
+        this.offset = offset;
+    }
+
+    private void setSaved(File f, long size, long modifiedTime)
+    {
+        file = f;
+        offset = 0;
+        onDisk = f != null;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+        // Read when it's needed, if at all
+        content = f == null ? new byte[0] : null;
+    }
+
+    private static String guessContentType(CanonicalURL sourceURL)
+    {
         String s = sourceURL.toExternalForm().toLowerCase();
         if(s.indexOf(".jpg") != -1)
         {
-            contentType = "image/jpeg";
+            return "image/jpeg";
         }
         else if(s.indexOf(".gif") != -1)
         {
-            contentType = "image/gif";
+            return "image/gif";
         }
         else
         {
-            contentType = "text/html";
+            return "text/html";
         }
+    }
 
-        if(existsOnDisk())
+    private byte[] readFile(File f) throws IOException
+    {
+        byte[] bytes = new byte[(int) size];
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        try
+        {
+            in.seek(offset);
+            in.readFully(bytes);
+        }
+        finally
         {
+            in.close();
+        }
+        if(config.storeCompressed() && isParseable(contentType) && isGzipped(bytes))
+        {
+            bytes = gunzip(bytes);
+        }
+        return bytes;
+    }
 
-            File f = new File(convertToFileName());
-            if(f.isDirectory())
-            {
-                f = new File(f, "index.html");
-            }
-            content = new byte[(int) f.length()];
-            try
-            {
-                FileInputStream in = new FileInputStream(f);
-                in.read(content);
-                in.close();
-            }
-            catch(IOException ioe)
+    private static boolean isGzipped(byte[] bytes)
+    {
+        return bytes.length >= 2 && (bytes[0] & 0xff) == 0x1f && (bytes[1] & 0xff) == 0x8b;
+    }
+
+    /**
+     * Decompress a page that was saved as it was sent, gzipped.
+     */
+    private static byte[] gunzip(byte[] bytes) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        try
+        {
+            byte[] buf = new byte[8192];
+            int n;
+            while((n = in.read(buf)) >= 0)
             {
-                LechLogger.warn("IO Exception reading disk version of URL " + sourceURL, ioe);
+                out.write(buf, 0, n);
             }
         }
-        else
+        finally
         {
-            content = new byte[0];
+            in.close();
         }
+        return out.toByteArray();
+    }
+
+    public CanonicalURL getSourceURL()
+    {
+        return sourceURL;
+    }
+
+    /**
+     * Remember the validators the server sent with the body.
+     */
+    public void setValidators(String etag, String lastModified)
+    {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Remember how many bytes came over the network for the body, and how
+     * many it decoded to if it was compressed.
+     */
+    public void setTransferSize(long transferredBytes, long decodedBytes)
+    {
+        this.transferredBytes = transferredBytes;
+        this.decodedBytes = decodedBytes;
+    }
+
+    public long getTransferredBytes()
+    {
+        return transferredBytes;
+    }
+
+    public long getDecodedBytes()
+    {
+        return decodedBytes;
+    }
+
+    /**
+     * Remember the Dedup.ALGORITHM digest of the body as it's saved.
+     */
+    public void setDigest(String digest)
+    {
+        this.digest = digest;
+    }
+
+    /** The digest of the body, or null if it wasn't worked out. */
+    public String getDigest()
+    {
+        return digest;
+    }
+
+    /** The ETag header it was downloaded with, or null. */
+    public String getETag()
+    {
+        return etag;
+    }
+
+    /** The Last-Modified header it was downloaded with, or null. */
+    public String getLastModified()
+    {
+        return lastModified;
     }
 
     public String getContentType()
@@ -112,12 +345,209 @@ public class URLObject
         return contentType.startsWith("image/");
     }
 
+    /**
+     * Whether a content type is one the spider parses for links, and so
+     * worth keeping in memory while downloading.
+     */
+    public static boolean isParseable(String contentType)
+    {
+        if(contentType == null)
+        {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/html") || type.startsWith("text/xml");
+    }
+
+    /**
+     * The body, read back from file if it wasn't kept in memory, or null
+     * if it couldn't be read.
+     */
+    public synchronized byte[] getContent()
+    {
+        if(content == null)
+        {
+            if(file == null)
+            {
+                content = new byte[0];
+            }
+            else if(awaitWriteQuietly())
+            {
+                try
+                {
+                    content = readFile(file);
+                }
+                catch(IOException ioe)
+                {
+                    LechLogger.warn("IO Exception reading disk version of URL " + sourceURL, ioe);
+                }
+            }
+        }
+        return content;
+    }
+
+    /**
+     * The body as a buffer. Saved files bigger than the parse buffer size
+     * are memory-mapped rather than read in, and paged in as they're
+     * parsed. The buffer mustn't be written to. Null if the body couldn't
+     * be read.
+     */
+    public synchronized ByteBuffer getContentBuffer()
+    {
+        if(contentBuffer == null)
+        {
+            if(content == null && file != null && size > config.getParseBufferSize() && !config.storeCompressed() && awaitWriteQuietly())
+            {
+                contentBuffer = mapFile(file);
+            }
+            if(contentBuffer == null)
+            {
+                byte[] bytes = getContent();
+                if(bytes == null)
+                {
+                    return null;
+                }
+                contentBuffer = ByteBuffer.wrap(bytes);
+            }
+        }
+        return contentBuffer.duplicate();
+    }
+
+    /**
+     * Make sure the body is in memory, or at least paged in, ready to be
+     * parsed.
+     */
+    public void loadContent()
+    {
+        ByteBuffer buffer = getContentBuffer();
+        if(buffer instanceof MappedByteBuffer)
+        {
+            ((MappedByteBuffer) buffer).load();
+        }
+    }
+
+    private MappedByteBuffer mapFile(File f)
+    {
+        try
+        {
+            FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            try
+            {
+                // The mapping stays valid after the channel's closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception mapping disk version of URL " + sourceURL, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * The DiskWriter write of the file still going on, or null.
+     */
+    public synchronized DiskWriter.Output getWrite()
+    {
+        return write;
+    }
+
+    /**
+     * Wait for the file to be written, if it's being written behind.
+     *
+     * @throws IOException If writing it failed.
+     */
+    public void awaitWrite() throws IOException
+    {
+        DiskWriter.Output w = getWrite();
+        if(w != null)
+        {
+            w.await();
+        }
+    }
+
+    /**
+     * @return Whether the file was written.
+     */
+    private boolean awaitWriteQuietly()
+    {
+        try
+        {
+            awaitWrite();
+            return true;
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception writing disk version of URL " + sourceURL, ioe);
+            return false;
+        }
+    }
+
+    /**
+     * The file the body is in, or null. It may hold other bodies too, see
+     * getOffset(), and may still be being written, see awaitWrite().
+     */
+    public synchronized File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Where the body starts in its file.
+     */
+    public synchronized long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * Size in bytes of the saved body, or -1 if there isn't one.
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Modification time of the saved file, as looked up by a handle on
+     * it, or 0.
+     */
+    public long getModifiedTime()
+    {
+        return modifiedTime;
+    }
+
     public String getStringContent()
     {
-        return new String(content);
+        byte[] bytes = getContent();
+        return bytes == null ? null : new String(bytes);
     }
 
     private String convertToFileName()
+    {
+        if(fileName == null)
+        {
+            fileName = convertToFileName(sourceURL, config);
+        }
+        return fileName;
+    }
+
+    /**
+     * The name of the file a URL is saved to under the save root.
+     */
+    public static String convertToFileName(CanonicalURL sourceURL, SpiderConfig config)
+    {
+        return config.getSaveRootDirectory().getPath() + "/" + convertToRelativeName(sourceURL);
+    }
+
+    /**
+     * The name of the file a URL is saved to, relative to the save root.
+     */
+    public static String convertToRelativeName(CanonicalURL sourceURL)
     {
         String url = sourceURL.toExternalForm();
         int httpIdx = url.indexOf("http://");
@@ -135,43 +565,127 @@ public class URLObject
         {
             url = url + "index.html";
         }
-		try {
-			/* the old encode method is now deprecated, updated to the new API -- Coleman */
-			url = textReplace("?", URLEncoder.encode("?","UTF-8"), url);
-			url = textReplace("&", URLEncoder.encode("&","UTF-8"), url);
-		}
-		catch ( java.io.UnsupportedEncodingException exception )	{
-			LechLogger.error ( exception.toString() );
-		}
-        return config.getSaveRootDirectory().getPath() + "/" + url;
+        /* the old encode method is now deprecated, updated to the new API -- Coleman */
+        url = textReplace("?", ENCODED_QUESTION_MARK, url);
+        url = textReplace("&", ENCODED_AMPERSAND, url);
+        return url;
     }
 
-    public boolean existsOnDisk()
+    /**
+     * Whether the body is in a temporary file not yet moved into place.
+     */
+    public synchronized boolean isPending()
     {
-        File f = new File(convertToFileName());
-        return (f.exists() && !f.isDirectory());
+        return pending;
+    }
+
+    /**
+     * Move a pending body into place under the save root.
+     */
+    public synchronized void commit() throws IOException
+    {
+        if(!pending)
+        {
+            return;
+        }
+        File target = new File(convertToFileName());
+        try
+        {
+            awaitWrite();
+            moveIntoPlace(file, target);
+        }
+        catch(IOException ioe)
+        {
+            file.delete();
+            throw ioe;
+        }
+        file = target;
+        pending = false;
+        onDisk = true;
     }
 
-    public void writeToFile()
+    /**
+     * Note that the body has been saved as part of a bigger file, such as
+     * a WARC segment. A pending body's temporary file is no longer needed.
+     */
+    synchronized void stored(File f, long offset, long size)
     {
-        writeToFile(convertToFileName());
+        file = f;
+        this.offset = offset;
+        this.size = size;
+        modifiedTime = System.currentTimeMillis();
+        pending = false;
+        onDisk = true;
     }
 
-    public void writeToFile(String fileName)
+    /**
+     * Rename a completely downloaded file over its target, atomically where
+     * the file system allows it, so a half-written file is never seen.
+     */
+    static void moveIntoPlace(File temp, File target) throws IOException
+    {
+        try
+        {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(AtomicMoveNotSupportedException amnse)
+        {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public synchronized boolean existsOnDisk()
+    {
+        return onDisk;
+    }
+
+    /**
+     * @return Whether it was written, and so is now on disk.
+     */
+    public boolean writeToFile()
+    {
+        if(!writeToFile(convertToFileName()))
+        {
+            return false;
+        }
+        synchronized(this)
+        {
+            onDisk = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether it was written, failures having been logged.
+     */
+    public boolean writeToFile(String fileName)
     {
         LechLogger.debug("writeToFile(" + fileName + ")");
         try
         {
+            byte[] bytes = getContent();
+            if(bytes == null)
+            {
+                throw new IOException("Couldn't read body of " + sourceURL);
+            }
             File f = new File(fileName);
             f.getParentFile().mkdirs();
             FileOutputStream out = new FileOutputStream(fileName);
-            out.write(content);
-            out.flush();
-            out.close();
+            try
+            {
+                out.write(bytes);
+                out.flush();
+            }
+            finally
+            {
+                out.close();
+            }
+            return true;
         }
         catch(IOException ioe)
         {
             LechLogger.warn("IO Exception writing to " + fileName, ioe);
+            return false;
         }
     }
 
@@ -188,7 +702,7 @@ public class URLObject
         return sb.toString();
     }
 
-    private String textReplace(String find, String replace, String input)
+    private static String textReplace(String find, String replace, String input)
     {
         int startPos = 0;
         while(true)
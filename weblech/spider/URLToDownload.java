@@ -26,32 +26,30 @@
 
 package weblech.spider;
 
-import java.net.URL;
-
 public class URLToDownload implements java.io.Serializable
 {
-    private final URL url;
-    private final URL referer;
+    private final CanonicalURL url;
+    private final CanonicalURL referer;
     private final int depth;
 
-    public URLToDownload(URL url, int depth)
+    public URLToDownload(CanonicalURL url, int depth)
     {
         this(url, null, depth);
     }
 
-    public URLToDownload(URL url, URL referer, int depth)
+    public URLToDownload(CanonicalURL url, CanonicalURL referer, int depth)
     {
         this.url = url;
         this.referer = referer;
         this.depth = depth;
     }
 
-    public URL getURL()
+    public CanonicalURL getURL()
     {
         return url;
     }
 
-    public URL getReferer()
+    public CanonicalURL getReferer()
     {
         return referer;
     }
@@ -61,6 +59,20 @@ public class URLToDownload implements java.io.Serializable
         return depth;
     }
 
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof URLToDownload))
+        {
+            return false;
+        }
+        return url.equals(((URLToDownload) o).url);
+    }
+
+    public int hashCode()
+    {
+        return url.hashCode();
+    }
+
     public String toString()
     {
         return url + ", referer " + referer + ", depth " + depth;
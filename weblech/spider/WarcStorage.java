@@ -0,0 +1,530 @@
+/*
+ * This is the MIT license, see also http://www.opensource.org/licenses/mit-license.html
+ *
+ * Copyright (c) 2001 Brian Pitcher
+ * Copyright (c) 2004 Andrew Coleman
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package weblech.spider;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import weblech.ui.LechLogger;
+
+/**
+ * Appends downloads to WARC segment files under the save root, instead of
+ * saving a file per URL. A segment is started for each crawl, and rolled
+ * over when it reaches the configured size.
+ *
+ * Alongside each segment is an index of the records in it: the URL, the
+ * segment its body is in, where the body starts and how long it is. The
+ * indexes are read into memory when the crawl starts, so looking a URL up
+ * is a map lookup, and reading its body is a read of part of a segment.
+ *
+ * If deduplicating, a body identical to one already stored is recorded
+ * as a revisit record of just the headers, and indexed as being wherever
+ * the first copy is.
+ *
+ * Bodies are stored as they were saved, after any content coding was
+ * undone, so the HTTP headers in a record are rewritten to describe them.
+ */
+public class WarcStorage implements Storage
+{
+    /** Segments are named weblech-00000.warc, with weblech-00000.warc.idx alongside. */
+    public static final String SEGMENT_PREFIX = "weblech-";
+    public static final String SEGMENT_SUFFIX = ".warc";
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final byte[] RECORD_END = { '\r', '\n', '\r', '\n' };
+
+    /** Label of the digests in WARC-Payload-Digest headers. */
+    private static final String DIGEST_LABEL = "sha1";
+
+    private static final char[] BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+
+    /** WARC-Profile of revisit records for identical bodies. */
+    private static final String REVISIT_PROFILE = "http://netpreserve.org/warc/1.0/revisit/identical-payload-digest";
+
+    /** Where a URL's body is. */
+    private static class Location
+    {
+        final String url;
+        final File segment;
+        final long offset;
+        final long size;
+        final String contentType;
+        final long time;
+        /** Digest of the body, or null if not known. */
+        final String digest;
+
+        Location(String url, File segment, long offset, long size, String contentType, long time, String digest)
+        {
+            this.url = url;
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.contentType = contentType;
+            this.time = time;
+            this.digest = digest;
+        }
+    }
+
+    private final SpiderConfig config;
+    private final File root;
+    /** Map of URL to the Location of its newest record. */
+    private final Map index;
+    /** Map of digest to the Location of the first body with it, if deduplicating. */
+    private final Map digests;
+    /** Counts of bodies stored and found already stored, or null if not deduplicating. */
+    private final Dedup dedup;
+    private final SimpleDateFormat dateFormat;
+    /** Number of the next segment to be started. */
+    private int nextSegment;
+
+    /** The segment being appended to and its index, or null until the first store. */
+    private File segment;
+    private FileChannel segmentOut;
+    private DataOutputStream indexOut;
+    /** Records in the segment being appended to. */
+    private int records;
+
+    public WarcStorage(SpiderConfig config) throws IOException
+    {
+        this(config, null);
+    }
+
+    /**
+     * @param dedup Counts to keep if bodies are to be stored once each,
+     *              or null.
+     */
+    public WarcStorage(SpiderConfig config, Dedup dedup) throws IOException
+    {
+        this.config = config;
+        this.dedup = dedup;
+        root = config.getSaveRootDirectory();
+        root.mkdirs();
+        index = new ConcurrentHashMap();
+        digests = new ConcurrentHashMap();
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        String[] names = root.list();
+        if(names == null)
+        {
+            throw new IOException("Can't list save root " + root);
+        }
+        // Oldest first, so newer records of a URL replace older ones
+        Map segments = new TreeMap();
+        for(int i = 0; i < names.length; i++)
+        {
+            int number = segmentNumber(names[i]);
+            if(number >= 0)
+            {
+                segments.put(Integer.valueOf(number), new File(root, names[i]));
+                nextSegment = Math.max(nextSegment, number + 1);
+            }
+        }
+        Map lengths = new HashMap();
+        for(Iterator i = segments.values().iterator(); i.hasNext(); )
+        {
+            File f = (File) i.next();
+            lengths.put(f.getName(), Long.valueOf(f.length()));
+        }
+        for(Iterator i = segments.values().iterator(); i.hasNext(); )
+        {
+            loadIndex((File) i.next(), lengths);
+        }
+        LechLogger.info("Read index of " + index.size() + " URLs from " + segments.size() + " WARC segments");
+    }
+
+    /**
+     * The number of a segment, or -1 if a file isn't one.
+     */
+    private static int segmentNumber(String name)
+    {
+        if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+        {
+            return -1;
+        }
+        try
+        {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch(NumberFormatException nfe)
+        {
+            return -1;
+        }
+    }
+
+    private static File indexFile(File segment)
+    {
+        return new File(segment.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * @param lengths Map of segment name to its length, to check records
+     *                against.
+     */
+    private void loadIndex(File segment, Map lengths) throws IOException
+    {
+        File idx = indexFile(segment);
+        if(!idx.exists())
+        {
+            LechLogger.warn("No index for WARC segment " + segment + ", its URLs will be downloaded again");
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+        try
+        {
+            while(true)
+            {
+                String segmentName;
+                Location loc;
+                try
+                {
+                    String url = in.readUTF();
+                    segmentName = in.readUTF();
+                    long offset = in.readLong();
+                    long size = in.readLong();
+                    String contentType = in.readUTF();
+                    loc = new Location(url, new File(root, segmentName), offset, size, contentType.length() > 0 ? contentType : null, in.readLong(), in.readUTF());
+                }
+                catch(EOFException eofe)
+                {
+                    // The end, or a record cut short by a crash
+                    break;
+                }
+                Long length = (Long) lengths.get(segmentName);
+                if(length == null || loc.offset + loc.size > length.longValue())
+                {
+                    continue;
+                }
+                index.put(loc.url, loc);
+                if(loc.digest.length() > 0 && !digests.containsKey(loc.digest))
+                {
+                    digests.put(loc.digest, loc);
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    public URLObject lookup(CanonicalURL url, String contentType)
+    {
+        Location loc = (Location) index.get(url.toExternalForm());
+        if(loc == null)
+        {
+            return new URLObject(url, contentType, null, -1, 0, config);
+        }
+        return new URLObject(url, loc.contentType, loc.segment, loc.offset, loc.size, loc.time, config);
+    }
+
+    /**
+     * Made in the save root, which is where everything is kept.
+     */
+    public File createTempFile(CanonicalURL url) throws IOException
+    {
+        return File.createTempFile(".weblech", ".part", root);
+    }
+
+    public void store(URLObject obj) throws IOException
+    {
+        boolean pending = obj.isPending();
+        if(!pending && obj.existsOnDisk())
+        {
+            return;
+        }
+        File temp = pending ? obj.getFile() : null;
+        try
+        {
+            obj.awaitWrite();
+            append(obj, temp);
+        }
+        finally
+        {
+            if(temp != null)
+            {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Append a response record for a download, or a revisit record if
+     * its body is stored already.
+     *
+     * @param temp The file the body's in, or null if it's only in memory.
+     */
+    private synchronized void append(URLObject obj, File temp) throws IOException
+    {
+        String url = obj.getSourceURL().toExternalForm();
+        byte[] content = temp == null ? obj.getContent() : null;
+        if(temp == null && content == null)
+        {
+            throw new IOException("Couldn't read body of " + obj.getSourceURL());
+        }
+        long bodySize = temp == null ? content.length : temp.length();
+
+        String digest = null;
+        Location original = null;
+        StringBuffer fields = new StringBuffer();
+        if(dedup != null)
+        {
+            digest = obj.getDigest();
+            if(digest == null)
+            {
+                digest = temp == null ? Dedup.digest(content) : Dedup.digest(temp);
+            }
+            original = (Location) digests.get(digest);
+            fields.append("WARC-Payload-Digest: ").append(DIGEST_LABEL).append(':').append(toBase32(digest)).append("\r\n");
+        }
+
+        byte[] httpHeader = httpHeader(obj, bodySize);
+        byte[] header;
+        long blockBodySize;
+        if(original != null)
+        {
+            fields.append("WARC-Profile: ").append(REVISIT_PROFILE).append("\r\n");
+            fields.append("WARC-Refers-To-Target-URI: ").append(original.url).append("\r\n");
+            header = warcHeader("revisit", url, fields.toString(), "application/http; msgtype=response", httpHeader.length);
+            blockBodySize = 0;
+        }
+        else
+        {
+            header = warcHeader("response", url, fields.toString(), "application/http; msgtype=response", httpHeader.length + bodySize);
+            blockBodySize = bodySize;
+        }
+
+        long recordSize = header.length + httpHeader.length + blockBodySize + RECORD_END.length;
+        if(segmentOut == null || (records > 0 && segmentOut.position() + recordSize > config.getWarcSegmentSize()))
+        {
+            roll();
+        }
+
+        long start = segmentOut.position();
+        long offset = 0;
+        try
+        {
+            write(header);
+            write(httpHeader);
+            offset = segmentOut.position();
+            if(original != null)
+            {
+                // Only the headers, the body's in the original's record
+            }
+            else if(temp != null)
+            {
+                FileChannel in = FileChannel.open(temp.toPath(), StandardOpenOption.READ);
+                try
+                {
+                    long done = 0;
+                    while(done < bodySize)
+                    {
+                        done += in.transferTo(done, bodySize - done, segmentOut);
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            else
+            {
+                write(content);
+            }
+            write(RECORD_END);
+        }
+        catch(IOException ioe)
+        {
+            // Don't leave half a record for the next one to follow
+            segmentOut.truncate(start);
+            throw ioe;
+        }
+        records++;
+
+        Location loc;
+        if(original != null)
+        {
+            loc = new Location(url, original.segment, original.offset, original.size, obj.getContentType(), System.currentTimeMillis(), digest);
+            dedup.duplicate(bodySize);
+        }
+        else
+        {
+            loc = new Location(url, segment, offset, bodySize, obj.getContentType(), System.currentTimeMillis(), digest);
+            if(dedup != null)
+            {
+                digests.put(digest, loc);
+                dedup.stored(bodySize);
+            }
+        }
+
+        indexOut.writeUTF(url);
+        indexOut.writeUTF(loc.segment.getName());
+        indexOut.writeLong(loc.offset);
+        indexOut.writeLong(loc.size);
+        indexOut.writeUTF(loc.contentType == null ? "" : loc.contentType);
+        indexOut.writeLong(loc.time);
+        indexOut.writeUTF(digest == null ? "" : digest);
+        indexOut.flush();
+
+        index.put(url, loc);
+        obj.stored(loc.segment, loc.offset, loc.size);
+    }
+
+    /**
+     * Start a new segment, beginning with a warcinfo record.
+     */
+    private void roll() throws IOException
+    {
+        closeSegment();
+        segment = new File(root, SEGMENT_PREFIX + String.format("%05d", new Object[] { Integer.valueOf(nextSegment++) }) + SEGMENT_SUFFIX);
+        LechLogger.info("Starting WARC segment " + segment);
+        segmentOut = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(segment))));
+        records = 0;
+
+        byte[] fields = ("software: WebLech\r\nformat: WARC File Format 1.0\r\n").getBytes(StandardCharsets.UTF_8);
+        write(warcHeader("warcinfo", null, "", "application/warc-fields", fields.length));
+        write(fields);
+        write(RECORD_END);
+    }
+
+    private void closeSegment() throws IOException
+    {
+        if(segmentOut != null)
+        {
+            segmentOut.close();
+            indexOut.close();
+            segmentOut = null;
+            indexOut = null;
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while(buf.hasRemaining())
+        {
+            segmentOut.write(buf);
+        }
+    }
+
+    /**
+     * @param targetURI The URL the record is of, or null.
+     * @param fields    Any more header lines, each ending CRLF.
+     */
+    private byte[] warcHeader(String type, String targetURI, String fields, String contentType, long length)
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("WARC/1.0\r\n");
+        sb.append("WARC-Type: ").append(type).append("\r\n");
+        sb.append("WARC-Record-ID: <urn:uuid:").append(UUID.randomUUID()).append(">\r\n");
+        sb.append("WARC-Date: ").append(dateFormat.format(new Date())).append("\r\n");
+        if(targetURI != null)
+        {
+            sb.append("WARC-Target-URI: ").append(targetURI).append("\r\n");
+        }
+        sb.append(fields);
+        sb.append("Content-Type: ").append(contentType).append("\r\n");
+        sb.append("Content-Length: ").append(length).append("\r\n");
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Re-encode a hex digest in base 32, the usual encoding of WARC
+     * digests. The index keeps them in hex, as Dedup makes them.
+     */
+    static String toBase32(String hex)
+    {
+        StringBuffer sb = new StringBuffer();
+        int bits = 0;
+        int buffered = 0;
+        for(int i = 0; i + 1 < hex.length(); i += 2)
+        {
+            buffered = (buffered << 8) | Integer.parseInt(hex.substring(i, i + 2), 16);
+            bits += 8;
+            while(bits >= 5)
+            {
+                bits -= 5;
+                sb.append(BASE32[(buffered >> bits) & 0x1f]);
+            }
+        }
+        if(bits > 0)
+        {
+            sb.append(BASE32[(buffered << (5 - bits)) & 0x1f]);
+            while(sb.length() % 8 != 0)
+            {
+                sb.append('=');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static byte[] httpHeader(URLObject obj, long bodySize)
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("HTTP/1.1 200 OK\r\n");
+        if(obj.getContentType() != null)
+        {
+            sb.append("Content-Type: ").append(obj.getContentType()).append("\r\n");
+        }
+        sb.append("Content-Length: ").append(bodySize).append("\r\n");
+        if(obj.getETag() != null)
+        {
+            sb.append("ETag: ").append(obj.getETag()).append("\r\n");
+        }
+        if(obj.getLastModified() != null)
+        {
+            sb.append("Last-Modified: ").append(obj.getLastModified()).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public synchronized void close()
+    {
+        try
+        {
+            closeSegment();
+        }
+        catch(IOException ioe)
+        {
+            LechLogger.warn("IO Exception closing WARC segment " + segment, ioe);
+        }
+    }
+}